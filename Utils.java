@@ -21,7 +21,7 @@ public class Utils {
 
 	public static Collection<File> getVcfFiles(String directoryName) {
 		File directory = new File(directoryName);
-		return FileUtils.listFiles(directory, new WildcardFileFilter(Arrays.asList("*.vcf.gz", "*.vcf")), null);
+		return FileUtils.listFiles(directory, new WildcardFileFilter(Arrays.asList("*.vcf.gz", "*.vcf", "*.bcf")), null);
 	}
 
 	public static void createFakeReport(List<TestSample> sampleCollection, File out) throws IOException {
@@ -0,0 +1,184 @@
+package contamination;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import core.Polymorphism;
+import core.SampleRanges;
+import core.TestSample;
+import phylotree.Phylotree;
+import search.ranking.RankingMethod;
+import search.ranking.Rankings;
+
+/**
+ * Classification results of the profiles of one run. Related individuals,
+ * replicates and common haplogroups lead to many identical profiles, a test
+ * sample whose profile is already in the cache takes over the results instead
+ * of searching the phylotree again. The cache holds at most maxSize profiles
+ * and evicts the least recently used one. All methods are thread safe, so one
+ * cache can be shared by the files of a batch. With a {@link ClassificationStore}
+ * the results are also kept between runs.
+ */
+public class ClassificationCache {
+
+	public static final int DEFAULT_SIZE = 1024;
+
+	private final LinkedHashMap<Key, TestSample> profiles;
+
+	private ClassificationStore store;
+
+	private int hits = 0;
+
+	public ClassificationCache() {
+		this(DEFAULT_SIZE);
+	}
+
+	public ClassificationCache(final int maxSize) {
+		profiles = new LinkedHashMap<Key, TestSample>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, TestSample> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return The key of the profile: its polymorphisms in profile order, the
+	 *         range, the expected haplogroup (its result is always kept) and the
+	 *         ranking method with the amount of results it keeps
+	 */
+	public Key getKey(TestSample sample, RankingMethod rankingMethod) {
+
+		StringBuilder polymorphisms = new StringBuilder();
+
+		for (Polymorphism polymorphism : sample.getSample().getPolymorphisms()) {
+			polymorphisms.append(polymorphism.toString());
+			if (polymorphism.isHeteroplasmy()) {
+				polymorphisms.append('h');
+			}
+			if (polymorphism.isReliable() != 0) {
+				polymorphisms.append('|').append(polymorphism.isReliable());
+			}
+			polymorphisms.append(' ');
+		}
+
+		return new Key(polymorphisms.toString(), sample.getSample().getSampleRanges(),
+				String.valueOf(sample.getExpectedHaplogroup()), rankingMethod.getClass().getName() + ":"
+						+ rankingMethod.getName() + ":" + Rankings.getMaxTopResults(rankingMethod));
+	}
+
+	/**
+	 * @return The already classified sample with this profile or null
+	 */
+	public synchronized TestSample get(Key key) {
+		return profiles.get(key);
+	}
+
+	public synchronized void put(Key key, TestSample sample) {
+		profiles.put(key, sample);
+	}
+
+	/**
+	 * Restores the results of a sample whose profile is in the store and adds
+	 * it to the cache.
+	 * 
+	 * @return false if there is no store or the profile could not be restored
+	 */
+	boolean restore(Key key, TestSample sample, Phylotree phylotree, RankingMethod rankingMethod) {
+
+		if (store == null || !store.restore(key, sample, phylotree, rankingMethod)) {
+			return false;
+		}
+
+		put(key, sample);
+
+		return true;
+	}
+
+	/**
+	 * Adds a searched sample to the cache and the store.
+	 */
+	void add(Key key, TestSample sample, RankingMethod rankingMethod) {
+
+		put(key, sample);
+
+		if (store != null) {
+			store.put(key, sample, rankingMethod);
+		}
+	}
+
+	synchronized void addHits(int hits) {
+		this.hits += hits;
+	}
+
+	/**
+	 * @return The amount of samples that were served from the cache
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getSize() {
+		return profiles.size();
+	}
+
+	public ClassificationStore getStore() {
+		return store;
+	}
+
+	/**
+	 * @param store The store of the results of previous runs or null
+	 */
+	public void setStore(ClassificationStore store) {
+		this.store = store;
+	}
+
+	public static final class Key {
+
+		private final String polymorphisms;
+		private final SampleRanges range;
+		private final String expectedHaplogroup;
+		private final String rankingMethod;
+		private final int hashCode;
+		private String digest;
+
+		Key(String polymorphisms, SampleRanges range, String expectedHaplogroup, String rankingMethod) {
+			this.polymorphisms = polymorphisms;
+			this.range = range;
+			this.expectedHaplogroup = expectedHaplogroup;
+			this.rankingMethod = rankingMethod;
+			this.hashCode = ((polymorphisms.hashCode() * 31 + range.hashCode()) * 31 + expectedHaplogroup.hashCode())
+					* 31 + rankingMethod.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) object;
+			return hashCode == key.hashCode && polymorphisms.equals(key.polymorphisms) && range.equals(key.range)
+					&& expectedHaplogroup.equals(key.expectedHaplogroup) && rankingMethod.equals(key.rankingMethod);
+		}
+
+		/**
+		 * @return The SHA-1 of the key, used to store the profile on disk
+		 */
+		synchronized String getDigest() {
+			if (digest == null) {
+				digest = ClassificationStore.digest(
+						polymorphisms + "\t" + range + "\t" + expectedHaplogroup + "\t" + rankingMethod);
+			}
+			return digest;
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+package contamination;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import core.Polymorphism;
+import core.TestSample;
+import phylotree.Phylotree;
+import phylotree.PhylotreeBatchSearch;
+import phylotree.PhylotreeSearch;
+import search.ranking.RankingMethod;
+import search.ranking.results.RankedResult;
+
+/**
+ * Classifies test samples in parallel on a fork/join pool. Every sample is
+ * searched independently by {@link TestSample#updateSearchResults}, which works
+ * on its own clone of the ranking method. The phylotree is only read during a
+ * search, so one instance is shared by all workers and the results are the
+ * same as for {@link core.SampleFile#updateClassificationResults}. Samples
+ * that share one polymorphism list and range are only searched once, with a
+ * {@link ClassificationCache} the same applies to identical profiles and to
+ * the profiles its store kept from previous runs. Another {@link PhylotreeSearch}
+ * can replace the full search of the phylotree, a {@link PhylotreeBatchSearch}
+ * (e.g. the {@link phylotree.IndexedSearch}) gets blocks of samples instead of
+ * single ones.
+ */
+public class ClassificationEngine {
+
+	// samples per leaf task, keeps the scheduling overhead small compared to a search
+	static final int THRESHOLD = 4;
+
+	// samples per leaf task of a batch search, they share the work that does not depend on one sample
+	static final int BATCH_SIZE = 32;
+
+	private int threads;
+
+	private ClassificationCache cache;
+
+	private PhylotreeSearch search;
+
+	public ClassificationEngine() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ClassificationEngine(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	public void classify(Phylotree phylotree, ArrayList<TestSample> samples, RankingMethod rankingMethod) {
+
+		// samples that share their polymorphism list and range (e.g. the major and
+		// minor profile of a sample without heteroplasmies) are searched once,
+		// with a cache the same applies to all samples with identical profiles
+		ArrayList<TestSample> searched = new ArrayList<TestSample>();
+		ArrayList<ClassificationCache.Key> searchedKeys = new ArrayList<ClassificationCache.Key>();
+		ArrayList<TestSample> copies = new ArrayList<TestSample>();
+		ArrayList<TestSample> sources = new ArrayList<TestSample>();
+		IdentityHashMap<ArrayList<Polymorphism>, TestSample> profiles = new IdentityHashMap<ArrayList<Polymorphism>, TestSample>();
+		HashMap<ClassificationCache.Key, TestSample> keys = new HashMap<ClassificationCache.Key, TestSample>();
+		int hits = 0;
+
+		for (TestSample sample : samples) {
+
+			TestSample source = profiles.get(sample.getSample().getPolymorphisms());
+			if (source != null && source.getSample().getSampleRanges() != sample.getSample().getSampleRanges()) {
+				source = null;
+			}
+
+			ClassificationCache.Key key = null;
+			if (source == null && cache != null) {
+				key = cache.getKey(sample, rankingMethod);
+				source = keys.get(key);
+				if (source == null) {
+					source = cache.get(key);
+				}
+				if (source != null) {
+					hits++;
+				} else if (cache.restore(key, sample, phylotree, rankingMethod)) {
+					// classified by a previous run
+					profiles.put(sample.getSample().getPolymorphisms(), sample);
+					keys.put(key, sample);
+					hits++;
+					continue;
+				}
+			}
+
+			if (source != null) {
+				copies.add(sample);
+				sources.add(source);
+			} else {
+				profiles.put(sample.getSample().getPolymorphisms(), sample);
+				if (key != null) {
+					keys.put(key, sample);
+				}
+				searched.add(sample);
+				searchedKeys.add(key);
+			}
+		}
+
+		search(phylotree, searched, rankingMethod);
+
+		for (int i = 0; i < copies.size(); i++) {
+			copies.get(i).updateSearchResults(sources.get(i));
+		}
+
+		if (cache != null) {
+			for (int i = 0; i < searched.size(); i++) {
+				cache.add(searchedKeys.get(i), searched.get(i), rankingMethod);
+			}
+			cache.addHits(hits);
+		}
+	}
+
+	private void search(Phylotree phylotree, ArrayList<TestSample> samples, RankingMethod rankingMethod) {
+
+		if (threads == 1 || samples.size() <= getThreshold(search)) {
+			for (int start = 0; start < samples.size(); start += BATCH_SIZE) {
+				updateSearchResults(samples, start, Math.min(start + BATCH_SIZE, samples.size()), phylotree, search,
+						rankingMethod);
+			}
+			return;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new ClassifyTask(phylotree, search, samples, rankingMethod, 0, samples.size()));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	static int getThreshold(PhylotreeSearch search) {
+		return search instanceof PhylotreeBatchSearch ? BATCH_SIZE : THRESHOLD;
+	}
+
+	static void updateSearchResults(ArrayList<TestSample> samples, int start, int end, Phylotree phylotree,
+			PhylotreeSearch search, RankingMethod rankingMethod) {
+
+		if (search instanceof PhylotreeBatchSearch) {
+			List<List<RankedResult>> results = ((PhylotreeBatchSearch) search).search(samples.subList(start, end),
+					rankingMethod);
+			for (int i = start; i < end; i++) {
+				samples.get(i).setSearchResults((ArrayList<RankedResult>) results.get(i - start));
+			}
+			return;
+		}
+
+		for (int i = start; i < end; i++) {
+			if (search != null) {
+				samples.get(i).updateSearchResults(search, rankingMethod);
+			} else {
+				samples.get(i).updateSearchResults(phylotree, rankingMethod);
+			}
+		}
+	}
+
+	public ClassificationCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @param cache The cache of already classified profiles or null
+	 */
+	public void setCache(ClassificationCache cache) {
+		this.cache = cache;
+	}
+
+	public PhylotreeSearch getSearch() {
+		return search;
+	}
+
+	/**
+	 * @param search The search used instead of {@link Phylotree#search} or null
+	 */
+	public void setSearch(PhylotreeSearch search) {
+		this.search = search;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	static class ClassifyTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Phylotree phylotree;
+		private final PhylotreeSearch search;
+		private final ArrayList<TestSample> samples;
+		private final RankingMethod rankingMethod;
+		private final int start;
+		private final int end;
+
+		ClassifyTask(Phylotree phylotree, PhylotreeSearch search, ArrayList<TestSample> samples,
+				RankingMethod rankingMethod, int start, int end) {
+			this.phylotree = phylotree;
+			this.search = search;
+			this.samples = samples;
+			this.rankingMethod = rankingMethod;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (end - start <= getThreshold(search)) {
+				updateSearchResults(samples, start, end, phylotree, search, rankingMethod);
+				return;
+			}
+
+			int middle = (start + end) >>> 1;
+			invokeAll(new ClassifyTask(phylotree, search, samples, rankingMethod, start, middle),
+					new ClassifyTask(phylotree, search, samples, rankingMethod, middle, end));
+		}
+	}
+
+}
@@ -0,0 +1,283 @@
+package contamination;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import core.Haplogroup;
+import core.TestSample;
+import phylotree.AncestryIndex;
+import phylotree.ExactSearch;
+import phylotree.PhyloTreeNode;
+import phylotree.Phylotree;
+import search.SearchResult;
+import search.ranking.RankingMethod;
+import search.ranking.Rankings;
+import search.ranking.results.RankedResult;
+
+/**
+ * On-disk part of the {@link ClassificationCache}. Keeps the top hit (tree
+ * node, haplogroup and distance) of every classified profile between runs, so
+ * a rerun on a grown cohort only searches new or changed profiles. Profiles
+ * are stored by the SHA-1 of their cache key, the file is bound to the content
+ * of the phylotree and weights file and is discarded if one of them changes.
+ *
+ * A stored top hit is restored by evaluating the phylotree path of its node
+ * the same way {@link Phylotree#search} does and ranking this single result.
+ * Only profiles whose ranking keeps one result and that have no expected
+ * haplogroup (whose result would be kept as well) are stored and restored,
+ * for them the ranking only cuts the sorted results to the top hit, so the
+ * result is the same as the one of a full search. If the restored distance
+ * differs from the stored one the profile is searched again.
+ */
+public class ClassificationStore {
+
+	private static final String HEADER = "#haplocheck classification cache";
+
+	private final File file;
+
+	private final String identity;
+
+	private final HashMap<String, String[]> entries = new HashMap<String, String[]>();
+
+	private boolean changed = false;
+
+	private ClassificationStore(File file, String identity) {
+		this.file = file;
+		this.identity = identity;
+	}
+
+	/**
+	 * Opens the cache file, a missing file or a file of another phylotree
+	 * results in an empty cache.
+	 */
+	public static ClassificationStore open(File file, String phylotreeFile, String weightsFile) throws IOException {
+
+		ClassificationStore store = new ClassificationStore(file,
+				getIdentity(phylotreeFile) + "\t" + getIdentity(weightsFile));
+
+		if (!file.exists()) {
+			return store;
+		}
+
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+
+		try {
+
+			String line = reader.readLine();
+
+			if (line == null || !line.equals(HEADER + "\t" + store.identity)) {
+				System.out.println("Classification cache " + file.getName()
+						+ " was created with another phylotree, all profiles are classified again.");
+				store.changed = true;
+				return store;
+			}
+
+			while ((line = reader.readLine()) != null) {
+				String[] tiles = line.split("\t");
+				if (tiles.length == 4) {
+					store.entries.put(tiles[0], new String[] { tiles[1], tiles[2], tiles[3] });
+				}
+			}
+
+		} finally {
+			reader.close();
+		}
+
+		return store;
+	}
+
+	/**
+	 * Restores the search results of a sample from its stored top hit.
+	 *
+	 * @return false if the profile is not stored or could not be restored
+	 */
+	boolean restore(ClassificationCache.Key key, TestSample sample, Phylotree phylotree, RankingMethod rankingMethod) {
+
+		if (!isTopHitOnly(sample, rankingMethod)) {
+			return false;
+		}
+
+		String[] entry;
+
+		synchronized (this) {
+			entry = entries.get(key.getDigest());
+		}
+
+		if (entry == null) {
+			return false;
+		}
+
+		AncestryIndex index = AncestryIndex.getInstance(phylotree);
+
+		int id;
+		try {
+			id = Integer.parseInt(entry[0]);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+
+		if (id <= 0 || id >= index.getSize() || !index.getHaplogroup(id).toString().equals(entry[1])) {
+			return false;
+		}
+
+		// path from the first node below the root to the top hit
+		ArrayList<PhyloTreeNode> path = new ArrayList<PhyloTreeNode>();
+		for (PhyloTreeNode node = index.getNode(id); node != null && node != index.getNode(0); node = node
+				.getParent()) {
+			path.add(node);
+		}
+		Collections.reverse(path);
+
+		SearchResult result = new SearchResult(index.getNode(0), sample);
+
+		for (PhyloTreeNode node : path) {
+			result = ExactSearch.search(node, result, sample);
+		}
+
+		ArrayList<SearchResult> results = new ArrayList<SearchResult>();
+		results.add(result);
+
+		RankingMethod ranking = rankingMethod.clone();
+		ranking.setResults(sample, results);
+
+		ArrayList<RankedResult> rankedResults = ranking.getResults();
+
+		if (rankedResults.size() != 1 || !Double.toString(rankedResults.get(0).getDistance()).equals(entry[2])) {
+			return false;
+		}
+
+		sample.setSearchResults(rankedResults);
+
+		return true;
+	}
+
+	/**
+	 * Stores the top hit of a classified sample.
+	 */
+	synchronized void put(ClassificationCache.Key key, TestSample sample, RankingMethod rankingMethod) {
+
+		RankedResult top = sample.getTopResult();
+
+		if (top == null || !isTopHitOnly(sample, rankingMethod)) {
+			return;
+		}
+
+		int id = AncestryIndex.getInstance(top.getSearchResult().getPhyloTree())
+				.getId(top.getSearchResult().getAttachedPhyloTreeNode());
+
+		if (id <= 0) {
+			return;
+		}
+
+		String[] entry = new String[] { String.valueOf(id), top.getHaplogroup().toString(),
+				Double.toString(top.getDistance()) };
+
+		String[] previous = entries.put(key.getDigest(), entry);
+
+		if (previous == null || !previous[0].equals(entry[0]) || !previous[2].equals(entry[2])) {
+			changed = true;
+		}
+	}
+
+	/**
+	 * @return true if the top hit is the only result the ranking keeps for the
+	 *         sample, otherwise the stored top hit can not restore all results
+	 */
+	private static boolean isTopHitOnly(TestSample sample, RankingMethod rankingMethod) {
+		Haplogroup expectedHaplogroup = sample.getExpectedHaplogroup();
+		return Rankings.getMaxTopResults(rankingMethod) == 1
+				&& (expectedHaplogroup == null || expectedHaplogroup.toString().isEmpty());
+	}
+
+	/**
+	 * Writes the cache file if profiles were added.
+	 */
+	public synchronized void save() throws IOException {
+
+		if (!changed) {
+			return;
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		FileWriter writer = new FileWriter(tmp);
+
+		try {
+			writer.write(HEADER + "\t" + identity + "\n");
+			for (Map.Entry<String, String[]> entry : entries.entrySet()) {
+				String[] value = entry.getValue();
+				writer.write(entry.getKey() + "\t" + value[0] + "\t" + value[1] + "\t" + value[2] + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not write " + file.getName());
+			}
+		}
+
+		changed = false;
+	}
+
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	/**
+	 * @return CRC32 and length of the file, resolved the same way as the
+	 *         PhylotreeManager does (class path first)
+	 */
+	private static String getIdentity(String name) throws IOException {
+
+		InputStream stream = ClassificationStore.class.getClassLoader().getResourceAsStream(name);
+
+		if (stream == null) {
+			stream = new FileInputStream(new File(name));
+		}
+
+		CRC32 crc = new CRC32();
+		long length = 0;
+
+		try {
+			byte[] buffer = new byte[1 << 16];
+			int read;
+			while ((read = stream.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+				length += read;
+			}
+		} finally {
+			stream.close();
+		}
+
+		return name + ":" + length + ":" + Long.toHexString(crc.getValue());
+	}
+
+	static String digest(String value) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+			StringBuilder builder = new StringBuilder();
+			for (byte b : hash) {
+				builder.append(String.format("%02x", b));
+			}
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
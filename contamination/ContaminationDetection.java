@@ -12,9 +12,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 
 import core.Haplogroup;
 import core.Polymorphism;
@@ -27,11 +32,11 @@ import contamination.objects.Tree;
 import util.Jenks;
 import util.Jenks.Breaks;
 import genepi.io.table.writer.CsvTableWriter;
+import phylotree.AncestryIndex;
 import phylotree.Phylotree;
 import phylotree.PhylotreeManager;
 import search.SearchResultTreeNode;
 import vcf.Sample;
-import vcf.Variant;
 
 public class ContaminationDetection {
 
@@ -39,10 +44,29 @@ public class ContaminationDetection {
 		YES, NO;
 	}
 
+	// clusters of a sample without counted heteroplasmies
+	private static final String NO_CLUSTERS = new Jenks().computeBreaks().printClusters();
+
 	private int heteroplasmyDistance = 3;
 	private int haplogroupDistance = 2;
 	private double haplogroupQ = 0.5;
 
+	/**
+	 * Thresholds of a single detection run.
+	 */
+	static class Settings {
+
+		final int heteroplasmyDistance;
+		final int haplogroupDistance;
+		final double haplogroupQ;
+
+		Settings(int heteroplasmyDistance, int haplogroupDistance, double haplogroupQ) {
+			this.heteroplasmyDistance = heteroplasmyDistance;
+			this.haplogroupDistance = haplogroupDistance;
+			this.haplogroupQ = haplogroupQ;
+		}
+	}
+
 	public ArrayList<ContaminationObject> detect(HashMap<String, Sample> mutationSamples,
 			ArrayList<TestSample> haplogrepSamples) {
 
@@ -52,6 +76,12 @@ public class ContaminationDetection {
 
 		Phylotree phylotree = PhylotreeManager.getInstance().getPhylotree("phylotree17.xml", "weights17.txt");
 
+		AncestryIndex index = AncestryIndex.getInstance(phylotree);
+
+		HeteroplasmyPrescreen prescreen = HeteroplasmyPrescreen.getInstance(phylotree);
+
+		Settings settings = new Settings(heteroplasmyDistance, haplogroupDistance, haplogroupQ);
+
 		NumberFormat formatter = new DecimalFormat("#0.000");
 
 		try {
@@ -59,271 +89,256 @@ public class ContaminationDetection {
 			for (int i = 0; i < haplogrepSamples.size(); i += 2) {
 			//for (int i = 0; i < 50; i += 2) {
 
-				int distance = 0;
-				Status status;
-
 				TestSample haplogrepMajor = haplogrepSamples.get(i);
 				TestSample haplogrepMinor = haplogrepSamples.get(i + 1);
 
-				ArrayList<Polymorphism> foundMajor = haplogrepMajor.getTopResult().getSearchResult().getDetailedResult()
-						.getFoundPolys();
-				ArrayList<Polymorphism> foundMinor = haplogrepMinor.getTopResult().getSearchResult().getDetailedResult()
-						.getFoundPolys();
+				contaminationList.add(detect(mutationSamples, haplogrepMajor, haplogrepMinor, phylotree, index,
+						prescreen, settings, formatter));
 
-				ContaminationObject contamination = new ContaminationObject();
-				contamination.setId(haplogrepMajor.getSampleID().split("_maj")[0]);
-				double hgQualityMajor = haplogrepMajor.getTopResult().getDistance();
-				double hgQualityMinor = haplogrepMinor.getTopResult().getDistance();
+			}
 
-                String sample_id1 = haplogrepMajor.getSampleID();
-                String sample_id2 = haplogrepMajor.getSampleID().split("_maj")[0];
-                //System.out.println("At this sample " + sample_id1 + " after splitting "+ sample_id2);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
 
-				Sample mutserveSample = mutationSamples.get(contamination.getId());
+		return contaminationList;
+	}
 
-				int sampleHomoplasmies = mutserveSample.getAmountHomoplasmies();
-				int sampleHeteroplasmies = mutserveSample.getAmountHeteroplasmies();
-                
-                //String sample_id_at = contamination.getId();
-                //System.out.println("At this sample " + sample_id_at);
+	/**
+	 * Scores all major/minor pairs concurrently on a fixed thread pool. The
+	 * thresholds are read once and used for the whole run, the returned list has
+	 * the same order as the one of {@link #detect(HashMap, ArrayList)}.
+	 */
+	public ArrayList<ContaminationObject> detect(final HashMap<String, Sample> mutationSamples,
+			final ArrayList<TestSample> haplogrepSamples, int threads) {
 
-		        int meanCoverageSample;
+		if (threads <= 1) {
+			return detect(mutationSamples, haplogrepSamples);
+		}
 
-                if(mutserveSample.getAmountVariants() > 0){ 
-				    meanCoverageSample = (int) mutserveSample.getSumCoverage() / mutserveSample.getAmountVariants();
-                }
-                else{
-				    meanCoverageSample = -1;
-                }
-				contamination.setHgMajor(haplogrepMajor.getTopResult().getHaplogroup().toString());
-				contamination.setHgMinor(haplogrepMinor.getTopResult().getHaplogroup().toString());
+		Collections.sort((List<TestSample>) haplogrepSamples);
 
-				int homoplasmiesMajor = countHomoplasmies(mutserveSample, foundMajor);
-				int homoplasmiesMinor = countHomoplasmies(mutserveSample, foundMinor);
+		final Phylotree phylotree = PhylotreeManager.getInstance().getPhylotree("phylotree17.xml", "weights17.txt");
 
-				// find common ancestor
-				Haplogroup commonAncestor = getCommonAncestor(contamination, phylotree);
+		final AncestryIndex index = AncestryIndex.getInstance(phylotree);
 
-				double meanHeteroplasmyMajor = calcMeanHeteroplasmy(haplogrepMajor, mutserveSample, phylotree,
-						commonAncestor, true);
-				double meanHeteroplasmyMinor = calcMeanHeteroplasmy(haplogrepMinor, mutserveSample, phylotree,
-						commonAncestor, false);
+		final HeteroplasmyPrescreen prescreen = HeteroplasmyPrescreen.getInstance(phylotree);
 
-				int majorHeteroplasmies = countOverlappingHeteroplasmies(haplogrepMajor, mutserveSample, phylotree,
-						commonAncestor, true);
-				int minorHeteroplasmies = countOverlappingHeteroplasmies(haplogrepMinor, mutserveSample, phylotree,
-						commonAncestor, false);
+		final Settings settings = new Settings(heteroplasmyDistance, haplogroupDistance, haplogroupQ);
 
-				Jenks jenks = new Jenks();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
 
-				calcBreaks(jenks, haplogrepMajor, mutserveSample, phylotree, commonAncestor, true);
-				calcBreaks(jenks, haplogrepMinor, mutserveSample, phylotree, commonAncestor, false);
+		ArrayList<Future<ContaminationObject>> futures = new ArrayList<Future<ContaminationObject>>();
 
-				Breaks jenkBreaks = jenks.computeBreaks();
+		for (int i = 0; i < haplogrepSamples.size(); i += 2) {
 
-				String clusters = jenkBreaks.printClusters();
+			final TestSample haplogrepMajor = haplogrepSamples.get(i);
+			final TestSample haplogrepMinor = haplogrepSamples.get(i + 1);
 
-				if (!contamination.getHgMajor().equals(contamination.getHgMinor())) {
+			futures.add(executor.submit(new Callable<ContaminationObject>() {
+				@Override
+				public ContaminationObject call() throws Exception {
+					// DecimalFormat is not thread-safe, use one per pair
+					NumberFormat formatter = new DecimalFormat("#0.000");
+					return detect(mutationSamples, haplogrepMajor, haplogrepMinor, phylotree, index, prescreen,
+							settings, formatter);
+				}
+			}));
+		}
 
-					distance = calcDistance(contamination, phylotree);
+		executor.shutdown();
 
-					if ((majorHeteroplasmies + minorHeteroplasmies) >= heteroplasmyDistance
-							&& distance >= haplogroupDistance && hgQualityMajor > haplogroupQ
-							&& hgQualityMinor > haplogroupQ) {
-						status = Status.YES;
-					} else {
-						status = Status.NO;
-					}
-				} else {
-					status = Status.NO;
-				}
+		ArrayList<ContaminationObject> contaminationList = new ArrayList<ContaminationObject>();
 
-				contamination.setStatus(status);
-				contamination.setSampleHomoplasmies(sampleHomoplasmies);
-				contamination.setSampleHeteroplasmies(sampleHeteroplasmies);
-				contamination.setSampleMeanCoverage(meanCoverageSample);
-				contamination.setHgMajorQ(formatter.format(hgQualityMajor));
-				contamination.setHgMinorQ(formatter.format(hgQualityMinor));
-				contamination.setHomoplasmiesMajor(homoplasmiesMajor);
-				contamination.setHomoplasmiesMinor(homoplasmiesMinor);
-				contamination.setClusterInfo(clusters);
-				contamination.setHeteroplasmiesMajor(majorHeteroplasmies);
-				contamination.setHeteroplasmiesMinor(minorHeteroplasmies);
-				contamination.setMeanHetlevelMajor(formatter.format(meanHeteroplasmyMajor));
-				contamination.setMeanHetlevelMinor(formatter.format(meanHeteroplasmyMinor));
-				contamination.setDistance(distance);
-
-				ArrayList<TestSample> samples = new ArrayList<TestSample>();
-				samples.add(haplogrepMajor);
-				samples.add(haplogrepMinor);
-				Tree tree = getJsonTree(mutserveSample, samples);
-				contamination.setEdges(tree.getEdges());
-				contamination.setNodes(tree.getNodes());
-				contaminationList.add(contamination);
+		try {
 
+			for (Future<ContaminationObject> future : futures) {
+				contaminationList.add(future.get());
 			}
 
 		} catch (Exception e) {
 			e.printStackTrace();
+			executor.shutdownNow();
 			return null;
 		}
 
 		return contaminationList;
 	}
 
-	private int calcDistance(ContaminationObject centry, Phylotree phylotree) {
+	private ContaminationObject detect(HashMap<String, Sample> mutationSamples, TestSample haplogrepMajor,
+			TestSample haplogrepMinor, Phylotree phylotree, AncestryIndex index, HeteroplasmyPrescreen prescreen,
+			Settings settings, NumberFormat formatter)
+			throws IOException {
 
-		Haplogroup hgMajor = new Haplogroup(centry.getHgMajor());
+		int distance = 0;
+		Status status;
 
-		Haplogroup hgMinor = new Haplogroup(centry.getHgMinor());
+		ArrayList<Polymorphism> foundMajor = haplogrepMajor.getTopResult().getSearchResult().getDetailedResult()
+				.getFoundPolys();
+		ArrayList<Polymorphism> foundMinor = haplogrepMinor.getTopResult().getSearchResult().getDetailedResult()
+				.getFoundPolys();
 
-		return phylotree.getDistanceBetweenHaplogroups(hgMajor, hgMinor);
-	}
+		ContaminationObject contamination = new ContaminationObject();
+		contamination.setId(haplogrepMajor.getSampleID().split("_maj")[0]);
+		double hgQualityMajor = haplogrepMajor.getTopResult().getDistance();
+		double hgQualityMinor = haplogrepMinor.getTopResult().getDistance();
 
-	private int countHomoplasmies(Sample currentSample, ArrayList<Polymorphism> foundHaplogrep) {
+		Sample mutserveSample = mutationSamples.get(contamination.getId());
 
-		int count = 0;
+		int sampleHomoplasmies = mutserveSample.getAmountHomoplasmies();
+		int sampleHeteroplasmies = mutserveSample.getAmountHeteroplasmies();
 
-		for (Polymorphism found : foundHaplogrep) {
-
-			Variant variant = currentSample.getVariant(found.getPosition());
-
-			if (variant != null && (variant.getType() == 1 || variant.getType() == 4)) {
-				count++;
-			}
+		int meanCoverageSample;
 
+		if (mutserveSample.getAmountVariants() > 0) {
+			meanCoverageSample = (int) mutserveSample.getSumCoverage() / mutserveSample.getAmountVariants();
+		} else {
+			meanCoverageSample = -1;
 		}
-		return count;
-	}
 
-	private int calcBreaks(Jenks j, TestSample haplogrepSample, Sample mutserveSample, Phylotree phylotree,
-			Haplogroup commonAncestor, boolean major) {
+		contamination.setHgMajor(haplogrepMajor.getTopResult().getHaplogroup().toString());
+		contamination.setHgMinor(haplogrepMinor.getTopResult().getHaplogroup().toString());
 
-		int count = 0;
+		int homoplasmiesMajor = countHomoplasmies(mutserveSample, foundMajor);
+		int homoplasmiesMinor = countHomoplasmies(mutserveSample, foundMinor);
 
-		ArrayList<SearchResultTreeNode> path = haplogrepSample.getTopResult().getSearchResult().getDetailedResult()
-				.getPhyloTreePath();
+		// pre-screen: without countable heteroplasmies the levels are empty
+		int maxHeteroplasmies = prescreen.getMaxHeteroplasmies(mutserveSample, true)
+				+ prescreen.getMaxHeteroplasmies(mutserveSample, false);
 
-		for (SearchResultTreeNode current : path) {
-			Haplogroup node = current.getHaplogroup();
+		ArrayList<Double> levelsMajor;
+		ArrayList<Double> levelsMinor;
+		String clusters;
 
-			for (Polymorphism currentPoly : current.getExpectedPolys()) {
+		if (maxHeteroplasmies == 0) {
 
-				Variant pos = mutserveSample.getVariant(currentPoly.getPosition());
+			// nothing to count: no common ancestor, path walk or clustering needed
+			levelsMajor = new ArrayList<Double>();
+			levelsMinor = new ArrayList<Double>();
+			clusters = NO_CLUSTERS;
 
-				if (pos == null) {
-					continue;
-				}
-				
-				if (currentPoly.isBackMutation()) {
-					continue;
-				}
-
-				// check mutation rate
-				if (phylotree.getMutationRate(currentPoly) < 5) {
-					continue;
-				}
-
-				// count only heteroplasmies from common ancestor and later!
-				if (!commonAncestor.isSuperHaplogroup(phylotree, node)) {
-					continue;
-				}
-
-				if (major && (pos.getRef() == pos.getMajor())) {
-
-					continue;
-				}
+		} else {
 
-				if (!major && (pos.getRef() == pos.getMinor())) {
+			// find common ancestor
+			Haplogroup commonAncestor = getCommonAncestor(contamination, index);
 
-					continue;
-				}
+			levelsMajor = collectHeteroplasmyLevels(haplogrepMajor, mutserveSample, phylotree, index, commonAncestor,
+					true);
+			levelsMinor = collectHeteroplasmyLevels(haplogrepMinor, mutserveSample, phylotree, index, commonAncestor,
+					false);
 
-				if (pos.getType() == 2 && pos.getVariant() != 'd') {
+			Jenks jenks = new Jenks();
 
-					if (major) {
-						j.addValue(pos.getMajorLevel());
-					} else {
-						j.addValue(pos.getMinorLevel());
-					}
-					count++;
-				}
+			for (double level : levelsMajor) {
+				jenks.addValue(level);
+			}
+			for (double level : levelsMinor) {
+				jenks.addValue(level);
 			}
 
+			Breaks jenkBreaks = jenks.computeBreaks();
+
+			clusters = jenkBreaks.printClusters();
 		}
 
-		return count;
-	}
+		double meanHeteroplasmyMajor = calcMedian(levelsMajor);
+		double meanHeteroplasmyMinor = calcMedian(levelsMinor);
 
-	private int countOverlappingHeteroplasmies(TestSample haplogrepSample, Sample mutserveSample, Phylotree phylotree,
-			Haplogroup commonAncestor, boolean major) {
+		int majorHeteroplasmies = levelsMajor.size();
+		int minorHeteroplasmies = levelsMinor.size();
 
-		int count = 0;
+		if (!contamination.getHgMajor().equals(contamination.getHgMinor())) {
 
-		ArrayList<SearchResultTreeNode> path = haplogrepSample.getTopResult().getSearchResult().getDetailedResult()
-				.getPhyloTreePath();
-
-		for (SearchResultTreeNode current : path) {
-			Haplogroup node = current.getHaplogroup();
+			distance = calcDistance(contamination, index);
 
-			for (Polymorphism currentPoly : current.getExpectedPolys()) {
+			if ((majorHeteroplasmies + minorHeteroplasmies) >= settings.heteroplasmyDistance
+					&& distance >= settings.haplogroupDistance && hgQualityMajor > settings.haplogroupQ
+					&& hgQualityMinor > settings.haplogroupQ) {
+				status = Status.YES;
+			} else {
+				status = Status.NO;
+			}
+		} else {
+			status = Status.NO;
+		}
 
-				Variant pos = mutserveSample.getVariant(currentPoly.getPosition());
+		contamination.setStatus(status);
+		contamination.setSampleHomoplasmies(sampleHomoplasmies);
+		contamination.setSampleHeteroplasmies(sampleHeteroplasmies);
+		contamination.setSampleMeanCoverage(meanCoverageSample);
+		contamination.setHgMajorQ(formatter.format(hgQualityMajor));
+		contamination.setHgMinorQ(formatter.format(hgQualityMinor));
+		contamination.setHomoplasmiesMajor(homoplasmiesMajor);
+		contamination.setHomoplasmiesMinor(homoplasmiesMinor);
+		contamination.setClusterInfo(clusters);
+		contamination.setHeteroplasmiesMajor(majorHeteroplasmies);
+		contamination.setHeteroplasmiesMinor(minorHeteroplasmies);
+		contamination.setMeanHetlevelMajor(formatter.format(meanHeteroplasmyMajor));
+		contamination.setMeanHetlevelMinor(formatter.format(meanHeteroplasmyMinor));
+		contamination.setDistance(distance);
+
+		ArrayList<TestSample> samples = new ArrayList<TestSample>();
+		samples.add(haplogrepMajor);
+		samples.add(haplogrepMinor);
+		Tree tree = getJsonTree(mutserveSample, samples);
+		contamination.setEdges(tree.getEdges());
+		contamination.setNodes(tree.getNodes());
+		return contamination;
+	}
 
-				if (pos == null) {
-					continue;
-				}
+	private int calcDistance(ContaminationObject centry, AncestryIndex index) {
 
-				if (currentPoly.isBackMutation()) {
-					continue;
-				}
+		Haplogroup hgMajor = new Haplogroup(centry.getHgMajor());
 
-				// check mutation rate
-				if (phylotree.getMutationRate(currentPoly) < 5) {
-					continue;
-				}
+		Haplogroup hgMinor = new Haplogroup(centry.getHgMinor());
 
-				// count only heteroplasmies from common ancestor and later!
-				if (!commonAncestor.isSuperHaplogroup(phylotree, node)) {
-					continue;
-				}
+		return index.getDistanceBetweenHaplogroups(hgMajor, hgMinor);
+	}
 
-				if (major && (pos.getRef() == pos.getMajor())) {
+	private int countHomoplasmies(Sample currentSample, ArrayList<Polymorphism> foundHaplogrep) {
 
-					continue;
-				}
+		int count = 0;
 
-				if (!major && (pos.getRef() == pos.getMinor())) {
+		for (Polymorphism found : foundHaplogrep) {
 
-					continue;
-				}
+			int variant = currentSample.indexOf(found.getPosition());
 
-				if (pos.getType() == 2 && pos.getVariant() != 'd') {
-					count++;
-				}
+			if (variant != -1 && (currentSample.getTypeAt(variant) == 1 || currentSample.getTypeAt(variant) == 4)) {
+				count++;
 			}
 
 		}
-
 		return count;
 	}
 
-	private double calcMeanHeteroplasmy(TestSample haplogrepSample, Sample mutserveSample, Phylotree phylotree,
-			Haplogroup commonAncestor, boolean major) {
+	/**
+	 * Walks the phylotree path of the top hit once and collects the major (or
+	 * minor) levels of all heteroplasmies expected from the common ancestor on.
+	 * The amount of heteroplasmies, their median level and the input for the
+	 * Jenks clustering are all derived from this list.
+	 */
+	private ArrayList<Double> collectHeteroplasmyLevels(TestSample haplogrepSample, Sample mutserveSample,
+			Phylotree phylotree, AncestryIndex index, Haplogroup commonAncestor, boolean major) {
 
-		ArrayList<Double> distanceList = new ArrayList<Double>();
+		ArrayList<Double> levels = new ArrayList<Double>();
 
 		ArrayList<SearchResultTreeNode> path = haplogrepSample.getTopResult().getSearchResult().getDetailedResult()
 				.getPhyloTreePath();
 
+		int ancestorId = index.getId(commonAncestor);
+
 		for (SearchResultTreeNode current : path) {
-			Haplogroup node = current.getHaplogroup();
+			int nodeId = index.getId(current.getPhyloTreeNode());
+
+			boolean fromCommonAncestor = ancestorId != -1 && nodeId != -1
+					&& index.isSuperHaplogroup(ancestorId, nodeId);
 
 			for (Polymorphism currentPoly : current.getExpectedPolys()) {
 
-				Variant pos = mutserveSample.getVariant(currentPoly.getPosition());
+				int pos = mutserveSample.indexOf(currentPoly.getPosition());
 
-				if (pos == null) {
+				if (pos == -1) {
 					continue;
 				}
 
@@ -337,32 +352,37 @@ public class ContaminationDetection {
 				}
 
 				// count only heteroplasmies from common ancestor and later!
-				if (!commonAncestor.isSuperHaplogroup(phylotree, node)) {
+				if (!fromCommonAncestor) {
 					continue;
 				}
 
-				if (major && (pos.getRef() == pos.getMajor())) {
+				if (major && (mutserveSample.getRefAt(pos) == mutserveSample.getMajorAt(pos))) {
 
 					continue;
 				}
 
-				if (!major && (pos.getRef() == pos.getMinor())) {
+				if (!major && (mutserveSample.getRefAt(pos) == mutserveSample.getMinorAt(pos))) {
 
 					continue;
 				}
 
-				if (pos.getType() == 2 && pos.getVariant() != 'd') {
+				if (mutserveSample.getTypeAt(pos) == 2 && mutserveSample.getVariantAt(pos) != 'd') {
 					if (major) {
-						distanceList.add(pos.getMajorLevel());
+						levels.add(mutserveSample.getMajorLevelAt(pos));
 					} else {
-						distanceList.add(pos.getMinorLevel());
+						levels.add(mutserveSample.getMinorLevelAt(pos));
 					}
 				}
 			}
 		}
 
-		if (distanceList.size() > 0) {
-			return com.google.common.math.Quantiles.median().compute(distanceList);
+		return levels;
+	}
+
+	private double calcMedian(ArrayList<Double> levels) {
+
+		if (levels.size() > 0) {
+			return com.google.common.math.Quantiles.median().compute(levels);
 		} else {
 			return 0.0;
 		}
@@ -421,8 +441,48 @@ public class ContaminationDetection {
 		wr.close();
 	}
 
+	/**
+	 * Opens a json report that is written in several parts with
+	 * {@link #appendReportAsJson(JsonWriter, ArrayList)}. The result is the same
+	 * as the one of {@link #writeReportAsJson(String, ArrayList)}.
+	 */
+	public JsonWriter openReportAsJson(String outputJson) throws IOException {
+		JsonWriter writer = createGson().newJsonWriter(new FileWriter(outputJson));
+		writer.beginArray();
+		return writer;
+	}
+
+	public void appendReportAsJson(JsonWriter writer, ArrayList<ContaminationObject> contaminationList) {
+		Gson gson = createGson();
+		for (ContaminationObject entry : contaminationList) {
+			gson.toJson(entry, ContaminationObject.class, writer);
+		}
+	}
+
+	public void closeReportAsJson(JsonWriter writer) throws IOException {
+		writer.endArray();
+		writer.close();
+	}
+
+	private Gson createGson() {
+		return new GsonBuilder().setPrettyPrinting().create();
+	}
+
 	public void writeReport(String output, ArrayList<ContaminationObject> list) {
 
+		CsvTableWriter contaminationWriter = openReport(output);
+
+		appendReport(contaminationWriter, list);
+
+		contaminationWriter.close();
+	}
+
+	/**
+	 * Opens a report that is written in several parts with
+	 * {@link #appendReport(CsvTableWriter, ArrayList)}.
+	 */
+	public CsvTableWriter openReport(String output) {
+
 		CsvTableWriter contaminationWriter = new CsvTableWriter(output, '\t');
 
 		String[] columnsWrite = { "SampleID", "Contamination", "SampleHomoplasmies", "SampleHeteroplasmies",
@@ -431,6 +491,11 @@ public class ContaminationDetection {
 				"MeanHetLevelMinor", "HG_Distance", "Clusters" };
 		contaminationWriter.setColumns(columnsWrite);
 
+		return contaminationWriter;
+	}
+
+	public void appendReport(CsvTableWriter contaminationWriter, ArrayList<ContaminationObject> list) {
+
 		for (ContaminationObject entry : list) {
 			contaminationWriter.setString(0, entry.getId());
 			contaminationWriter.setString(1, entry.getStatus().name());
@@ -452,7 +517,6 @@ public class ContaminationDetection {
 			contaminationWriter.next();
 		}
 
-		contaminationWriter.close();
 	}
 
 	public static Tree getJsonTree(Sample currentSample, ArrayList<TestSample> samples) throws IOException {
@@ -523,16 +587,16 @@ public class ContaminationDetection {
 					builder.append(" ");
 				}
 
-				Variant pos = currentSample.getVariant(currentPoly.getPosition());
+				int pos = currentSample.indexOf(currentPoly.getPosition());
 
-				if (pos != null) {
+				if (pos != -1) {
 					double level = 0;
-					if (pos.getType() == 2 && id.contains("maj")) {
-						level = pos.getMajorLevel();
-					} else if (pos.getType() == 2 && id.contains("min")) {
-						level = pos.getMinorLevel();
+					if (currentSample.getTypeAt(pos) == 2 && id.contains("maj")) {
+						level = currentSample.getMajorLevelAt(pos);
+					} else if (currentSample.getTypeAt(pos) == 2 && id.contains("min")) {
+						level = currentSample.getMinorLevelAt(pos);
 					}
-					if (pos.getType() == 2) {
+					if (currentSample.getTypeAt(pos) == 2) {
 						builder.append(currentPoly + " (" + level + ")");
 					} else {
 						builder.append(currentPoly);
@@ -549,11 +613,11 @@ public class ContaminationDetection {
 
 			if (result.getFoundPolys().contains(currentPoly)) {
 
-				Variant pos = currentSample.getVariant(currentPoly.getPosition());
-				if (pos != null) {
-					if (pos.getType() == 1) {
+				int pos = currentSample.indexOf(currentPoly.getPosition());
+				if (pos != -1) {
+					if (currentSample.getTypeAt(pos) == 1) {
 						return new Font("blue");
-					} else if (pos.getType() == 2) {
+					} else if (currentSample.getTypeAt(pos) == 2) {
 						return new Font("green");
 					}
 				}
@@ -563,13 +627,13 @@ public class ContaminationDetection {
 
 	}
 
-	private Haplogroup getCommonAncestor(ContaminationObject centry, Phylotree phylotree) {
+	private Haplogroup getCommonAncestor(ContaminationObject centry, AncestryIndex index) {
 
 		Haplogroup hgMajor = new Haplogroup(centry.getHgMajor());
 
 		Haplogroup hgMinor = new Haplogroup(centry.getHgMinor());
 
-		return phylotree.getCommonAncestor(hgMajor, hgMinor);
+		return index.getCommonAncestor(hgMajor, hgMinor);
 
 	}
 
@@ -3,8 +3,12 @@ package contamination;
 import java.util.ArrayList;
 
 import core.SampleFile;
+import core.TestSample;
 import exceptions.parse.HsdFileException;
+import phylotree.BitsetSearch;
+import phylotree.IndexedSearch;
 import phylotree.Phylotree;
+import phylotree.PhylotreeSearch;
 import search.ranking.HammingRanking;
 import search.ranking.JaccardRanking;
 import search.ranking.KulczynskiRanking;
@@ -12,6 +16,12 @@ import search.ranking.RankingMethod;
 
 public class HaplogroupClassifier {
 
+	private int threads = 1;
+
+	private ClassificationCache cache;
+
+	private PhylotreeSearch search;
+
 	public SampleFile calculateHaplogrops(Phylotree phylotree, ArrayList<String> profiles) {
 
 		return calculateHaplogrops(phylotree, profiles, "kulczynski");
@@ -19,39 +29,127 @@ public class HaplogroupClassifier {
 
 	public SampleFile calculateHaplogrops(Phylotree phylotree, ArrayList<String> profiles, String metric) {
 
-		RankingMethod newRanker = null;
+		RankingMethod newRanker = getRankingMethod(metric);
+
+		SampleFile samples = null;
+		try {
+			samples = new SampleFile(profiles);
+
+			if (threads > 1) {
+				new ClassificationEngine(threads).classify(phylotree, samples.getTestSamples(), newRanker);
+			} else {
+				samples.updateClassificationResults(phylotree, newRanker);
+			}
+
+			return samples;
+
+		} catch (HsdFileException e) {
+			e.printStackTrace();
+		}
+		return samples;
+
+	}
+
+	/**
+	 * Classifies test samples that were created without an hsd file, e.g. by
+	 * {@link VariantSplitter#splitToTestSamples}.
+	 */
+	public SampleFile classify(Phylotree phylotree, ArrayList<TestSample> testSamples) {
+
+		return classify(phylotree, testSamples, "kulczynski");
+	}
+
+	public SampleFile classify(Phylotree phylotree, ArrayList<TestSample> testSamples, String metric) {
+
+		ClassificationEngine engine = new ClassificationEngine(threads);
+		engine.setCache(cache);
+		engine.setSearch(search);
+		engine.classify(phylotree, testSamples, getRankingMethod(metric));
+
+		SampleFile samples = new SampleFile();
+		samples.setTestSamples(testSamples);
+
+		return samples;
+
+	}
+
+	private RankingMethod getRankingMethod(String metric) {
 
 		switch (metric) {
 
 		case "kulczynski":
-			newRanker = new KulczynskiRanking(1);
-			break;
+			return new KulczynskiRanking(1);
 
 		case "hamming":
-			newRanker = new HammingRanking(1);
-			break;
+			return new HammingRanking(1);
 
 		case "jaccard":
-			newRanker = new JaccardRanking(1);
-			break;
+			return new JaccardRanking(1);
 
 		default:
-			newRanker = new KulczynskiRanking(1);
+			return new KulczynskiRanking(1);
 
 		}
+	}
 
-		SampleFile samples = null;
-		try {
-			samples = new SampleFile(profiles);
+	public ClassificationCache getCache() {
+		return cache;
+	}
 
-			samples.updateClassificationResults(phylotree, newRanker);
+	/**
+	 * @param cache Shares the results of identical profiles, used by
+	 *              {@link #classify(Phylotree, ArrayList, String)}
+	 */
+	public void setCache(ClassificationCache cache) {
+		this.cache = cache;
+	}
 
-			return samples;
+	public PhylotreeSearch getSearch() {
+		return search;
+	}
+
+	/**
+	 * @param search Replaces the full search of the phylotree in
+	 *               {@link #classify(Phylotree, ArrayList, String)}, e.g. the
+	 *               {@link IndexedSearch}
+	 */
+	public void setSearch(PhylotreeSearch search) {
+		this.search = search;
+	}
+
+	/**
+	 * Selects the search by name: "indexed" ({@link IndexedSearch}), "bitset"
+	 * ({@link BitsetSearch}) or "full" (the full search of the phylotree).
+	 *
+	 * @return false if the name is unknown, the search is not changed then
+	 */
+	public boolean setSearch(Phylotree phylotree, String name) {
+
+		switch (name) {
+
+		case "indexed":
+			search = IndexedSearch.getInstance(phylotree);
+			return true;
+
+		case "bitset":
+			search = BitsetSearch.getInstance(phylotree);
+			return true;
+
+		case "full":
+			search = null;
+			return true;
+
+		default:
+			return false;
 
-		} catch (HsdFileException e) {
-			e.printStackTrace();
 		}
-		return samples;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
 
+	public void setThreads(int threads) {
+		this.threads = threads;
 	}
 }
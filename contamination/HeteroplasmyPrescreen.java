@@ -0,0 +1,110 @@
+package contamination;
+
+import core.Polymorphism;
+import phylotree.PhyloTreeNode;
+import phylotree.Phylotree;
+import phylotree.PhylotreeCache;
+import vcf.Sample;
+
+/**
+ * Upper bound of the heteroplasmies the detection can count for a sample.
+ * The detection only counts heteroplasmies at positions that are expected on
+ * the phylotree path of the top hit, so a position contributes at most as
+ * often as it occurs (without back mutations) on any path of the tree. A
+ * sample whose bound is below the heteroplasmy distance can never be
+ * contaminated, whatever haplogroups the classification finds.
+ */
+final class HeteroplasmyPrescreen {
+
+	private static final PhylotreeCache<HeteroplasmyPrescreen> instances = new PhylotreeCache<HeteroplasmyPrescreen>(
+			new PhylotreeCache.Factory<HeteroplasmyPrescreen>() {
+				@Override
+				public HeteroplasmyPrescreen create(Phylotree phylotree) {
+					return new HeteroplasmyPrescreen(phylotree);
+				}
+			});
+
+	// maximal amount of expected polymorphisms per position on one path
+	private int[] occurrences = new int[16570];
+
+	private HeteroplasmyPrescreen(Phylotree phylotree) {
+		collectOccurrences(phylotree.getPhyloTree(), new int[occurrences.length]);
+	}
+
+	static HeteroplasmyPrescreen getInstance(Phylotree phylotree) {
+		return instances.get(phylotree);
+	}
+
+	private int[] collectOccurrences(PhyloTreeNode node, int[] path) {
+
+		for (Polymorphism polymorphism : node.getExpectedPolys()) {
+			int position = polymorphism.getPosition();
+			if (polymorphism.isBackMutation() || position < 0) {
+				continue;
+			}
+			if (position >= path.length) {
+				path = grow(path, position);
+			}
+			path[position]++;
+			if (path[position] > occurrences[position]) {
+				occurrences[position] = path[position];
+			}
+		}
+
+		for (PhyloTreeNode child : node.getSubHaplogroups()) {
+			path = collectOccurrences(child, path);
+		}
+
+		for (Polymorphism polymorphism : node.getExpectedPolys()) {
+			if (!polymorphism.isBackMutation() && polymorphism.getPosition() >= 0) {
+				path[polymorphism.getPosition()]--;
+			}
+		}
+
+		return path;
+	}
+
+	private int[] grow(int[] path, int position) {
+		int[] grown = new int[position + 1];
+		System.arraycopy(path, 0, grown, 0, path.length);
+		if (occurrences.length < grown.length) {
+			int[] grownOccurrences = new int[grown.length];
+			System.arraycopy(occurrences, 0, grownOccurrences, 0, occurrences.length);
+			occurrences = grownOccurrences;
+		}
+		return grown;
+	}
+
+	/**
+	 * @param major true for the heteroplasmies of the major profile, false for
+	 *              the minor profile
+	 * @return The maximal amount of major (or minor) heteroplasmies the
+	 *         detection can count for this sample
+	 */
+	int getMaxHeteroplasmies(Sample sample, boolean major) {
+
+		int count = 0;
+
+		for (int index = 0; index < sample.getSize(); index++) {
+
+			if (sample.getTypeAt(index) != 2 || sample.getVariantAt(index) == 'd') {
+				continue;
+			}
+
+			char base = major ? sample.getMajorAt(index) : sample.getMinorAt(index);
+
+			if (sample.getRefAt(index) == base) {
+				continue;
+			}
+
+			int position = sample.getPosAt(index);
+
+			if (position >= 0 && position < occurrences.length) {
+				count += occurrences[position];
+			}
+		}
+
+		return count;
+	}
+
+}
@@ -7,9 +7,15 @@ import java.util.Map;
 import java.util.TreeMap;
 
 import contamination.objects.HSDEntry;
+import core.Haplogroup;
+import core.Polymorphism;
+import core.PolymorphismPool;
+import core.SampleRanges;
+import core.TestSample;
+import exceptions.parse.sample.HsdFileSampleParseException;
+import exceptions.parse.sample.InvalidPolymorphismException;
 import genepi.io.table.reader.CsvTableReader;
 import vcf.Sample;
-import vcf.Variant;
 
 public class VariantSplitter {
 	
@@ -26,22 +32,25 @@ public class VariantSplitter {
 			majorProfile.setId(sample.getId() + "_maj");
 			minorProfile.setId(sample.getId() + "_min");
 
-			for (Variant variant : sample.getVariants()) {
+			for (int i = 0; i < sample.getSize(); i++) {
 
-				if (variant.getType() == 2 && variant.getLevel() < requiredHetLevel) {
+				int index = sample.getIndexInOrder(i);
+				int type = sample.getTypeAt(index);
+
+				if (type == 2 && sample.getLevelAt(index) < requiredHetLevel) {
 					continue;
 				}
 
 				// SNP or Deletion
-				if (variant.getType() == 1 || variant.getType() == 4) {
-					majorProfile.appendToProfile(variant.getPos() + "" + variant.getVariant());
-					minorProfile.appendToProfile(variant.getPos() + "" + variant.getVariant());
-				} else if (variant.getType() == 5) {
-					majorProfile.appendToProfile(variant.getInsertion());
-					minorProfile.appendToProfile(variant.getInsertion());
-				} else if (variant.getType() == 2) {
-					majorProfile.appendToProfile(variant.getPos() + "" + variant.getMajor());
-					minorProfile.appendToProfile(variant.getPos() + "" + variant.getMinor());
+				if (type == 1 || type == 4) {
+					majorProfile.appendToProfile(sample.getPosAt(index) + "" + sample.getVariantAt(index));
+					minorProfile.appendToProfile(sample.getPosAt(index) + "" + sample.getVariantAt(index));
+				} else if (type == 5) {
+					majorProfile.appendToProfile(sample.getInsertionAt(index));
+					minorProfile.appendToProfile(sample.getInsertionAt(index));
+				} else if (type == 2) {
+					majorProfile.appendToProfile(sample.getPosAt(index) + "" + sample.getMajorAt(index));
+					minorProfile.appendToProfile(sample.getPosAt(index) + "" + sample.getMinorAt(index));
 				}
 
 			}
@@ -53,6 +62,90 @@ public class VariantSplitter {
 
 	}
 
+	/**
+	 * Creates the major and minor test samples of every sample directly, the
+	 * samples are the same as the ones parsed from the lines of
+	 * {@link #split(HashMap)}. All test samples share one range (the covered
+	 * positions for a chip array import), the profiles of a sample without
+	 * heteroplasmies share one polymorphism list.
+	 */
+	public ArrayList<TestSample> splitToTestSamples(HashMap<String, Sample> samples)
+			throws HsdFileSampleParseException {
+
+		ArrayList<TestSample> testSamples = new ArrayList<TestSample>();
+
+		SampleRanges completeRange = new SampleRanges("1-16569", true);
+
+		for (Sample sample : samples.values()) {
+
+			SampleRanges range = sample.getChipRange() != null ? sample.getChipRange().getSampleRanges()
+					: completeRange;
+
+			ArrayList<Polymorphism> majorProfile = new ArrayList<Polymorphism>();
+			ArrayList<Polymorphism> minorProfile = new ArrayList<Polymorphism>();
+			boolean heteroplasmies = false;
+
+			for (int i = 0; i < sample.getSize(); i++) {
+
+				int index = sample.getIndexInOrder(i);
+				int type = sample.getTypeAt(index);
+
+				if (type == 2 && sample.getLevelAt(index) < requiredHetLevel) {
+					continue;
+				}
+
+				// SNP or Deletion
+				if (type == 1 || type == 4) {
+					Polymorphism polymorphism = PolymorphismPool.get(sample.getPosAt(index), sample.getVariantAt(index));
+					majorProfile.add(polymorphism);
+					minorProfile.add(polymorphism);
+				} else if (type == 5) {
+					ArrayList<Polymorphism> polymorphisms = parse(sample.getInsertionAt(index), range);
+					majorProfile.addAll(polymorphisms);
+					minorProfile.addAll(polymorphisms);
+				} else if (type == 2) {
+					majorProfile.add(PolymorphismPool.get(sample.getPosAt(index), sample.getMajorAt(index)));
+					minorProfile.add(PolymorphismPool.get(sample.getPosAt(index), sample.getMinorAt(index)));
+					heteroplasmies = true;
+				}
+
+			}
+
+			String id = sample.getId().trim();
+			TestSample major = createTestSample(id + "_maj", majorProfile, range);
+			testSamples.add(major);
+
+			// without heteroplasmies both profiles are the same, the shared list
+			// lets the classification search them only once
+			if (heteroplasmies) {
+				testSamples.add(createTestSample(id + "_min", minorProfile, range));
+			} else {
+				testSamples.add(new TestSample(id + "_min", new Haplogroup(""), major.getSample().getPolymorphisms(), range));
+			}
+		}
+
+		return testSamples;
+
+	}
+
+	private TestSample createTestSample(String id, ArrayList<Polymorphism> profile, SampleRanges range)
+			throws InvalidPolymorphismException {
+
+		// the hsd parser creates one empty polymorphism for an empty profile
+		if (profile.isEmpty()) {
+			profile = parse("", range);
+		}
+
+		return new TestSample(id, new Haplogroup(""), profile, range);
+	}
+
+	private ArrayList<Polymorphism> parse(String polymorphism, SampleRanges range)
+			throws InvalidPolymorphismException {
+		ArrayList<Polymorphism> polymorphisms = new core.Sample(polymorphism, range, 0).getPolymorphisms();
+		PolymorphismPool.intern(polymorphisms);
+		return polymorphisms;
+	}
+
 	public ArrayList<String> splitFileTmp(String variantFile) {
 
 		CsvTableReader reader = new CsvTableReader(new File(variantFile).getAbsolutePath(), '\t');
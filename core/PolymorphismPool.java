@@ -0,0 +1,168 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import exceptions.parse.sample.InvalidPolymorphismException;
+
+/**
+ * Thread safe pool of the polymorphisms of test samples. A cohort only holds a
+ * few thousand distinct polymorphisms, so all samples share one instance per
+ * polymorphism instead of parsing and storing their own copies.
+ *
+ * The key packs the position (15 bits), the mutation (4 bits), the
+ * heteroplasmy flag (1 bit) and the id of the inserted bases (11 bits) into
+ * one int. Polymorphisms that do not fit into the key, back mutations and
+ * polymorphisms with a reliability flag are never pooled.
+ *
+ * Only sample polymorphisms are pooled: the search sets the heteroplasmy flag
+ * of the expected polymorphisms of the phylotree, so they must not be shared.
+ */
+public final class PolymorphismPool {
+
+	static final int MAX_POSITION = (1 << 15) - 1;
+
+	static final int MAX_INSERTIONS = (1 << 11) - 1;
+
+	private static final ConcurrentHashMap<Integer, Polymorphism> polymorphisms = new ConcurrentHashMap<Integer, Polymorphism>();
+
+	// inserted bases (e.g. ".1CC") to their id, 0 is used for all other mutations
+	private static final HashMap<String, Integer> insertions = new HashMap<String, Integer>();
+
+	private PolymorphismPool() {
+	}
+
+	/**
+	 * Returns the polymorphism of a base at a position, created the same way
+	 * the hsd parser creates it from the string "position + base".
+	 */
+	public static Polymorphism get(int position, char base) throws InvalidPolymorphismException {
+
+		Mutations mutation = getMutation(base);
+		boolean heteroplasmy = base == 'R' || base == 'Y';
+
+		if (mutation != null && position > 0 && position <= MAX_POSITION) {
+			Polymorphism polymorphism = polymorphisms.get(getKey(position, mutation, heteroplasmy, 0));
+			if (polymorphism != null) {
+				return polymorphism;
+			}
+		}
+
+		// ambiguous bases are parsed as heteroplasmies
+		if (heteroplasmy) {
+			return intern(new Polymorphism(position + "" + base, true));
+		}
+
+		return intern(new Polymorphism(position + "" + base));
+	}
+
+	/**
+	 * @return The pooled polymorphism that is equal to this one or the
+	 *         polymorphism itself if it is the first one or can not be pooled
+	 */
+	public static Polymorphism intern(Polymorphism polymorphism) {
+
+		int key = getKey(polymorphism);
+
+		if (key == -1) {
+			return polymorphism;
+		}
+
+		Polymorphism pooled = polymorphisms.putIfAbsent(key, polymorphism);
+
+		return pooled == null ? polymorphism : pooled;
+	}
+
+	/**
+	 * Replaces all polymorphisms of the list by their pooled instances.
+	 */
+	public static void intern(ArrayList<Polymorphism> polymorphisms) {
+		for (int i = 0; i < polymorphisms.size(); i++) {
+			polymorphisms.set(i, intern(polymorphisms.get(i)));
+		}
+	}
+
+	/**
+	 * @return The amount of pooled polymorphisms
+	 */
+	public static int size() {
+		return polymorphisms.size();
+	}
+
+	static int getKey(Polymorphism polymorphism) {
+
+		int position = polymorphism.getPosition();
+		Mutations mutation = polymorphism.getMutation();
+
+		if (mutation == null || position <= 0 || position > MAX_POSITION || polymorphism.isBackMutation()
+				|| polymorphism.isReliable() != 0) {
+			return -1;
+		}
+
+		int insertion = 0;
+
+		if (mutation == Mutations.INS) {
+			// equals() ignores the amount of inserted bases, the string does not
+			insertion = getInsertionId(polymorphism.toString().substring(String.valueOf(position).length()));
+			if (insertion == -1) {
+				return -1;
+			}
+		}
+
+		return getKey(position, mutation, polymorphism.isHeteroplasmy(), insertion);
+	}
+
+	private static int getKey(int position, Mutations mutation, boolean heteroplasmy, int insertion) {
+		return position << 16 | mutation.ordinal() << 12 | (heteroplasmy ? 1 << 11 : 0) | insertion;
+	}
+
+	private static synchronized int getInsertionId(String bases) {
+
+		Integer id = insertions.get(bases);
+
+		if (id == null) {
+			if (insertions.size() == MAX_INSERTIONS) {
+				return -1;
+			}
+			id = insertions.size() + 1;
+			insertions.put(bases, id);
+		}
+
+		return id;
+	}
+
+	private static Mutations getMutation(char base) {
+
+		switch (base) {
+
+		case 'A':
+			return Mutations.A;
+
+		case 'C':
+			return Mutations.C;
+
+		case 'G':
+			return Mutations.G;
+
+		case 'T':
+			return Mutations.T;
+
+		case 'R':
+			return Mutations.R;
+
+		case 'Y':
+			return Mutations.Y;
+
+		case 'N':
+			return Mutations.N;
+
+		case 'd':
+			return Mutations.DEL;
+
+		default:
+			return null;
+		}
+	}
+
+}
@@ -12,6 +12,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import phylotree.Phylotree;
+import phylotree.PhylotreeSearch;
 import search.ClusteredSearchResults;
 import search.SearchResultTreeNode;
 import search.ranking.RankingMethod;
@@ -51,6 +52,20 @@ public class TestSample implements Comparable<TestSample>{
 		sample = new Sample(polymorphisms,sampleRange);
 	}
 
+	/**
+	 * Creates a test sample from already parsed polymorphisms. Unlike the constructor above the id is
+	 * kept as it is, so the sample is the same as the one parse() creates for the equivalent hsd line.
+	 * @param sampleID The id of the sample
+	 * @param expectedHaplogroup The haplogroup the user expects
+	 * @param polymorphisms The polymorphisms of the sample
+	 * @param sampleRange The range of the sample, can be shared by several samples
+	 */
+	public TestSample(String sampleID,Haplogroup expectedHaplogroup,ArrayList<Polymorphism> polymorphisms,SampleRanges sampleRange) {
+		this.testSampleID = sampleID;
+		this.expectedHaplogroup = expectedHaplogroup;
+		sample = new Sample(polymorphisms,sampleRange);
+	}
+
 	/**
 	 * Parses a new test sample object from an input string
 	 * @param inputString The string to parse
@@ -92,6 +107,8 @@ public class TestSample implements Comparable<TestSample>{
 				sampleString.append(columns[i] + " ");
 			}
 				parsedSample.sample = new Sample(sampleString.toString(),sampleRange, 0);
+				//share the polymorphism instances with all other samples
+				PolymorphismPool.intern(parsedSample.sample.getPolymorphisms());
 
 		} 
 		
@@ -372,7 +389,11 @@ public class TestSample implements Comparable<TestSample>{
 		clusteredResults = null;
 	}
 
-	/**Restarts search and updates all search results for this sample
+	/**Restarts search and updates all search results for this sample.
+	 * The search marks the polymorphisms of the tree it finds as heteroplasmies
+	 * of this sample. Concurrent searches only ever set this flag and no weight
+	 * or report reads it, so sharing the tree between workers is safe. The
+	 * {@link PhylotreeSearch} implementations do not change the tree.
 	 * @param phyloTreeToUse The phylotree version used for the search
 	 * @param rankingMethod The ranking method used (e.g Hamming)
 	 */
@@ -386,6 +407,35 @@ public class TestSample implements Comparable<TestSample>{
 		//}
 	}
 	
+	/**Restarts search with another implementation of the phylotree search (e.g. an indexed search)
+	 * @param search The search of the phylotree version to use
+	 * @param rankingMethod The ranking method used (e.g Hamming)
+	 */
+	public void updateSearchResults(PhylotreeSearch search,RankingMethod rankingMethod) {
+		List<RankedResult> results = search.search(this, rankingMethod.clone());
+		
+		searchResults = (ArrayList<RankedResult>) results;
+		clusteredResults = new ClusteredSearchResults(results);
+	}
+	
+	/**
+	 * Takes over the search results of a sample with the same polymorphisms and range instead of searching again
+	 * @param searchedSample The already searched sample
+	 */
+	public void updateSearchResults(TestSample searchedSample) {
+		searchResults = searchedSample.searchResults;
+		clusteredResults = searchedSample.clusteredResults;
+	}
+	
+	/**
+	 * Sets search results that were not created by a search of this sample (e.g. restored from a cache)
+	 * @param results The ranked results, best result first
+	 */
+	public void setSearchResults(ArrayList<RankedResult> results) {
+		searchResults = results;
+		clusteredResults = new ClusteredSearchResults(results);
+	}
+	
 	/**
 	 * @return The search results in clustered by the equal distances. Ranked by the used ranking method
 	 */
@@ -1,15 +1,27 @@
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.io.File;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.ArrayList;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.math.Quantiles;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+import genepi.io.table.writer.CsvTableWriter;
 
 import phylotree.Phylotree;
 import phylotree.PhylotreeManager;
@@ -20,7 +32,10 @@ import vcf.Sample;
 
 import contamination.HaplogroupClassifier;
 import core.SampleFile;
+import core.TestSample;
 
+import contamination.ClassificationCache;
+import contamination.ClassificationStore;
 import contamination.ContaminationDetection;
 import contamination.ContaminationDetection.Status;
 import contamination.objects.ContaminationObject;
@@ -30,9 +45,33 @@ public class haplocheck_contam{
 
 	Phylotree phylotree;
 	Collection<File> vcf_list;
+	int threads = Runtime.getRuntime().availableProcessors();
+	// heap budget for the sample columns of one file in bytes, 0 loads all samples at once
+	long memoryBudget = 0;
+	// search of the haplogroup classification, see HaplogroupClassifier.setSearch
+	String search = "indexed";
+
+	// classification results of identical profiles, shared by all files of the run
+	ClassificationCache cache = new ClassificationCache();
+
+	static final String PHYLOTREE = "phylotree17.xml";
+	static final String WEIGHTS = "weights17.txt";
+
+	// rough heap usage of one imported and classified sample (both profiles)
+	static final long BYTES_PER_SAMPLE = 256 * 1024;
+
+	public haplocheck_contam(String directoryName, int threads){
+		this(directoryName);
+		this.threads = threads;
+	}
+
+	public haplocheck_contam(String directoryName, int threads, long memoryBudget){
+		this(directoryName, threads);
+		this.memoryBudget = memoryBudget;
+	}
 
 	public haplocheck_contam(String directoryName){
-		phylotree = PhylotreeManager.getInstance().getPhylotree("phylotree17.xml", "weights17.txt");
+		phylotree = PhylotreeManager.getInstance().getPhylotree(PHYLOTREE, WEIGHTS);
 		/*	public static Collection<File> getVcfFiles(String directoryName) {
 		File directory = new File(directoryName);
 		return FileUtils.listFiles(directory, new WildcardFileFilter(Arrays.asList("*.vcf.gz", "*.vcf")), null);
@@ -44,10 +83,10 @@ public class haplocheck_contam{
 	public int run(){
 
 		if (vcf_list.size() > 1){
-        	System.out.println("Only one VCF file");
-        	System.out.println(vcf_list);
-
-			return 1;
+			if (memoryBudget > 0) {
+				System.out.println("memory_mb only applies to a single VCF file, the files are imported in a single pass.");
+			}
+			return runBatch();
 		}
 
 
@@ -55,39 +94,247 @@ public class haplocheck_contam{
 			File file = vcf_list.iterator().next();
         	System.out.println(vcf_list);
 
+			if (memoryBudget > 0) {
+				analyseChunked(file, threads);
+				return 0;
+			}
 
-			VariantSplitter splitter = new VariantSplitter();
-			VcfImporter reader = new VcfImporter();
+			ContaminationDetection contamination = new ContaminationDetection();
+			ArrayList<ContaminationObject> result = analyse(file, threads);
 
 
+			contamination.writeReport("output", result);
+			contamination.writeReportAsJson("output_json", result);
+			writeSummary("output_summary", result);
 
-			HashMap<String, Sample> mutationServerSamples = reader.load(file, false);
 
-			ArrayList<String> profiles = splitter.split(mutationServerSamples);
+		}catch(Exception e){
+			System.out.println(e);
+			return 1;
+		}
 
 
-			HaplogroupClassifier classifier = new HaplogroupClassifier();
+		return 0;
+	}
 
-			SampleFile haplogrepSamples = classifier.calculateHaplogrops(phylotree, profiles);
+	/**
+	 * Runs every VCF file of the input directory on a bounded worker pool. All
+	 * workers share the loaded phylotree. Reports are written per file
+	 * (prefixed with the file name) and once more for the merged cohort.
+	 */
+	private int runBatch(){
 
+		ArrayList<File> files = new ArrayList<File>(vcf_list);
+		Collections.sort(files);
+		System.out.println(files);
 
+		final HashMap<File, String> prefixes = getPrefixes(files);
+		if (prefixes == null) {
+			System.out.println("Input files " + files + " do not have unique report names.");
+			return 1;
+		}
+
+		int poolSize = Math.max(1, Math.min(threads, files.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+
+		ArrayList<Future<ArrayList<ContaminationObject>>> futures = new ArrayList<Future<ArrayList<ContaminationObject>>>();
+
+		for (final File file : files) {
+			futures.add(executor.submit(new Callable<ArrayList<ContaminationObject>>() {
+				@Override
+				public ArrayList<ContaminationObject> call() throws Exception {
+					ArrayList<ContaminationObject> result = analyse(file, 1);
+					String prefix = prefixes.get(file);
+					ContaminationDetection contamination = new ContaminationDetection();
+					contamination.writeReport(prefix + "_output", result);
+					contamination.writeReportAsJson(prefix + "_output_json", result);
+					writeSummary(prefix + "_output_summary", result);
+					return result;
+				}
+			}));
+		}
+
+		executor.shutdown();
+
+		int exitCode = 0;
+		ArrayList<ContaminationObject> cohort = new ArrayList<ContaminationObject>();
+
+		for (int i = 0; i < files.size(); i++) {
+			try {
+				cohort.addAll(futures.get(i).get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				System.out.println(e);
+				return 1;
+			} catch (ExecutionException e) {
+				System.out.println(files.get(i) + ": " + e.getCause());
+				exitCode = 1;
+			}
+		}
+
+		try{
 			ContaminationDetection contamination = new ContaminationDetection();
+			contamination.writeReport("output", cohort);
+			contamination.writeReportAsJson("output_json", cohort);
+			writeSummary("output_summary", cohort);
+		}catch(IOException e){
+			System.out.println(e);
+			return 1;
+		}
+
+		return exitCode;
+	}
+
+	private ArrayList<ContaminationObject> analyse(File file, int workerThreads) throws Exception {
+
+		VariantSplitter splitter = new VariantSplitter();
+		VcfImporter reader = new VcfImporter();
+		reader.setFastImport(true);
+		if (workerThreads > 1) {
+			reader.setDecompressionThreads(workerThreads);
+			reader.setThreads(workerThreads);
+		}
+
+		HashMap<String, Sample> mutationServerSamples = reader.load(file, false);
+
+		ArrayList<TestSample> profiles = splitter.splitToTestSamples(mutationServerSamples);
+
+
+		HaplogroupClassifier classifier = new HaplogroupClassifier();
+		classifier.setThreads(workerThreads);
+		classifier.setCache(cache);
+		classifier.setSearch(phylotree, search);
+
+		SampleFile haplogrepSamples = classifier.classify(phylotree, profiles);
+
+
+		ContaminationDetection contamination = new ContaminationDetection();
+		ArrayList<ContaminationObject> result = contamination.detect(mutationServerSamples,
+				haplogrepSamples.getTestSamples(), workerThreads);
+
+		if (result == null) {
+			throw new Exception("Contamination detection failed for " + file.getName());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Imports the VCF file in chunks of sample columns. Each chunk is split,
+	 * classified and checked for contamination before the next one is loaded,
+	 * so the heap usage depends on the chunk size (derived from the memory
+	 * budget) and not on the amount of samples in the file. Reports are written
+	 * incrementally and are the same as the ones of a single pass.
+	 */
+	private void analyseChunked(File file, int workerThreads) throws Exception {
+
+		ArrayList<String> names = VcfImporter.getSampleNames(file);
+
+		// same order as the sorted test samples of a single pass
+		Collections.sort(names, new Comparator<String>() {
+			@Override
+			public int compare(String o1, String o2) {
+				return (o1 + "_maj").compareTo(o2 + "_maj");
+			}
+		});
+
+		int chunkSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / BYTES_PER_SAMPLE));
+
+		ContaminationDetection contamination = new ContaminationDetection();
+		CsvTableWriter report = contamination.openReport("output");
+		JsonWriter reportJson = contamination.openReportAsJson("output_json");
+
+		int countYes = 0;
+		int countNo = 0;
+		ArrayList<Integer> distanceList = new ArrayList<Integer>();
+
+		for (int start = 0; start < names.size(); start += chunkSize) {
+
+			List<String> chunk = names.subList(start, Math.min(names.size(), start + chunkSize));
+
+			VcfImporter reader = new VcfImporter();
+			reader.setFastImport(true);
+			if (workerThreads > 1) {
+				reader.setDecompressionThreads(workerThreads);
+				reader.setThreads(workerThreads);
+			}
+			HashMap<String, Sample> mutationServerSamples = reader.load(file, false, chunk);
+
+			ArrayList<TestSample> profiles = new VariantSplitter().splitToTestSamples(mutationServerSamples);
+
+			HaplogroupClassifier classifier = new HaplogroupClassifier();
+			classifier.setThreads(workerThreads);
+			classifier.setCache(cache);
+			classifier.setSearch(phylotree, search);
+			SampleFile haplogrepSamples = classifier.classify(phylotree, profiles);
+
 			ArrayList<ContaminationObject> result = contamination.detect(mutationServerSamples,
-					haplogrepSamples.getTestSamples());
+					haplogrepSamples.getTestSamples(), workerThreads);
 
+			if (result == null) {
+				throw new Exception("Contamination detection failed for " + file.getName());
+			}
 
-			contamination.writeReport("output", result);
-			contamination.writeReportAsJson("output_json", result);
-			writeSummary("output_summary", result);
+			contamination.appendReport(report, result);
+			contamination.appendReportAsJson(reportJson, result);
 
+			for (ContaminationObject cont : result) {
+				if (cont.getStatus() == Status.YES) {
+					countYes++;
+					distanceList.add(cont.getDistance());
+				} else if (cont.getStatus() == Status.NO) {
+					countNo++;
+				}
+			}
+		}
 
-		}catch(Exception e){
-			System.out.println(e);
-			return 1;
+		report.close();
+		contamination.closeReportAsJson(reportJson);
+		writeSummary("output_summary", countYes, countNo, distanceList);
+	}
+
+	/**
+	 * @return The report prefix of every file, its name without the extension.
+	 *         Files whose names only differ by the extension (e.g. cohort.vcf
+	 *         and cohort.vcf.gz) keep their full name, so their workers do not
+	 *         write the same reports. Null if the prefixes are still not unique.
+	 */
+	private static HashMap<File, String> getPrefixes(List<File> files) {
+
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		for (File file : files) {
+			String prefix = getPrefix(file);
+			counts.put(prefix, counts.containsKey(prefix) ? counts.get(prefix) + 1 : 1);
 		}
 
+		HashMap<File, String> prefixes = new HashMap<File, String>();
+		HashSet<String> used = new HashSet<String>();
+		for (File file : files) {
+			String prefix = getPrefix(file);
+			if (counts.get(prefix) > 1) {
+				prefix = file.getName();
+			}
+			if (!used.add(prefix)) {
+				return null;
+			}
+			prefixes.put(file, prefix);
+		}
 
-		return 0;
+		return prefixes;
+	}
+
+	private static String getPrefix(File file) {
+		String name = file.getName();
+		if (name.endsWith(".vcf.gz")) {
+			return name.substring(0, name.length() - ".vcf.gz".length());
+		}
+		if (name.endsWith(".vcf")) {
+			return name.substring(0, name.length() - ".vcf".length());
+		}
+		if (name.endsWith(".bcf")) {
+			return name.substring(0, name.length() - ".bcf".length());
+		}
+		return name;
 	}
 
 
@@ -106,6 +353,12 @@ public class haplocheck_contam{
 			}
 		}
 
+		writeSummary(outSummary, countYes, countNo, distanceList);
+	}
+
+	private void writeSummary(String outSummary, int countYes, int countNo, ArrayList<Integer> distanceList)
+			throws IOException {
+
 		JsonObject result = new JsonObject();
 		result.add("Yes", new JsonPrimitive(countYes));
 		result.add("No", new JsonPrimitive(countNo));
@@ -130,15 +383,54 @@ public class haplocheck_contam{
 
 
     public static void main(String[] args) {
-        if(args.length != 1){
-          System.out.println("Usage: java -jar mtServerCLI.jar bam_file");
+        if(args.length < 1 || args.length > 5){
+          System.out.println("Usage: java -jar mtServerCLI.jar bam_file [threads] [memory_mb] [cache_file] [indexed|bitset|full]");
           System.exit(1);
         }
 
 
-        haplocheck_contam pileup = new haplocheck_contam(args[0]);
-        pileup.run();
+        haplocheck_contam pileup;
+        if(args.length >= 3){
+          pileup = new haplocheck_contam(args[0], Integer.parseInt(args[1]), Long.parseLong(args[2]) * 1024 * 1024);
+        }
+        else if(args.length == 2){
+          pileup = new haplocheck_contam(args[0], Integer.parseInt(args[1]));
+        }
+        else{
+          pileup = new haplocheck_contam(args[0]);
+        }
+
+        if(args.length == 5){
+          if(!new HaplogroupClassifier().setSearch(pileup.phylotree, args[4])){
+            System.out.println("Unknown search " + args[4] + ", use indexed, bitset or full.");
+            System.exit(1);
+          }
+          pileup.search = args[4];
+        }
+
+        // classification results of previous runs, - keeps no results
+        if(args.length >= 4 && !args[3].equals("-")){
+          try{
+            pileup.cache.setStore(ClassificationStore.open(new File(args[3]), PHYLOTREE, WEIGHTS));
+          }catch(IOException e){
+            e.printStackTrace();
+          }
+        }
+
+        int exitCode = pileup.run();
+        System.out.println("Samples served from the classification cache: " + pileup.cache.getHits());
+
+        // results of a failed run are not kept
+        if(exitCode == 0 && pileup.cache.getStore() != null){
+          try{
+            pileup.cache.getStore().save();
+          }catch(IOException e){
+            e.printStackTrace();
+            exitCode = 1;
+          }
+        }
 
+        System.exit(exitCode);
     }
 
 
@@ -0,0 +1,510 @@
+package importer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.SynchronousLineReader;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+import vcf.ChipRange;
+import vcf.Sample;
+
+/**
+ * Imports BCF files without creating VariantContext or Genotype objects. Only
+ * the alleles of a record and the GT, AF and DP fields of the requested sample
+ * columns are decoded, all other values are skipped by their length. The
+ * samples are the same as the ones {@link VcfImporter} creates for the
+ * equivalent VCF file.
+ */
+public class BcfImporter {
+
+	private static final int TYPE_INT8 = 1;
+	private static final int TYPE_INT16 = 2;
+	private static final int TYPE_INT32 = 3;
+	private static final int TYPE_FLOAT = 5;
+	private static final int TYPE_CHAR = 7;
+
+	private static final int FLOAT_MISSING = 0x7F800001;
+	private static final int FLOAT_END_OF_VECTOR = 0x7F800002;
+
+	private static final Pattern DICTIONARY_LINE = Pattern.compile("^##(FILTER|INFO|FORMAT)=<(.*)>$");
+	private static final Pattern ID_FIELD = Pattern.compile("(?:^|,)ID=([^,>]+)");
+	private static final Pattern IDX_FIELD = Pattern.compile("(?:^|,)IDX=(\\d+)");
+
+	// threads used to inflate the file, 0 inflates on the calling thread
+	private int decompressionThreads = 0;
+
+	// record buffer, reused for all records
+	private byte[] buffer = new byte[1 << 16];
+
+	private static InputStream open(File file, int threads) throws IOException {
+		if (!ParallelBgzfInputStream.isBgzfFile(file)) {
+			return new BufferedInputStream(new FileInputStream(file));
+		}
+		if (threads > 0) {
+			return new ParallelBgzfInputStream(file, threads);
+		}
+		return new BlockCompressedInputStream(file);
+	}
+
+	public static ArrayList<String> getSampleNames(File file) throws IOException {
+		InputStream stream = open(file, 0);
+		try {
+			return readHeader(stream, new HashMap<String, Integer>()).getSampleNamesInOrder();
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * @param sampleNames The samples to load or null for all samples
+	 */
+	public HashMap<String, Sample> load(File file, boolean chip, List<String> sampleNames) throws IOException {
+
+		InputStream stream = open(file, decompressionThreads);
+
+		try {
+
+			HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+			VCFHeader vcfHeader = readHeader(stream, dictionary);
+
+			if (sampleNames == null) {
+				sampleNames = vcfHeader.getSampleNamesInOrder();
+			}
+
+			int gtKey = getKey(dictionary, "GT");
+			int afKey = getKey(dictionary, "AF");
+			int dpKey = getKey(dictionary, "DP");
+
+			int[] columns = new int[sampleNames.size()];
+			Sample[] samples = new Sample[sampleNames.size()];
+
+			for (int i = 0; i < columns.length; i++) {
+				Integer column = vcfHeader.getSampleNameToOffset().get(sampleNames.get(i));
+				if (column == null) {
+					throw new IOException("Sample " + sampleNames.get(i) + " not found in " + file.getName());
+				}
+				columns[i] = column;
+			}
+
+			// chip arrays: the covered positions are collected in the same pass
+			ChipRange.Builder chipRange = chip ? new ChipRange.Builder() : null;
+
+			byte[] lengths = new byte[8];
+			boolean first = true;
+
+			while (readFully(stream, lengths, 0, 8) == 8) {
+
+				int sharedLength = getInt32(lengths, 0);
+				int individualLength = getInt32(lengths, 4);
+				int length = sharedLength + individualLength;
+
+				if (buffer.length < length) {
+					buffer = new byte[Math.max(length, buffer.length * 2)];
+				}
+
+				if (readFully(stream, buffer, 0, length) < length) {
+					throw new EOFException("Truncated BCF record in " + file.getName());
+				}
+
+				int start = getInt32(buffer, 4) + 1;
+
+				if (start > 16569) {
+					System.out.println("Error! Position " + start
+							+ " outside the range. Please double check if VCF includes variants mapped to rCRS only.");
+				}
+
+				if (chip) {
+					chipRange.add(start);
+				}
+
+				if (first) {
+					for (int i = 0; i < samples.length; i++) {
+						samples[i] = new Sample();
+						samples[i].setId(sampleNames.get(i));
+					}
+					first = false;
+				}
+
+				decodeRecord(buffer, sharedLength, start, gtKey, afKey, dpKey, columns, samples);
+			}
+
+			HashMap<String, Sample> result = new HashMap<String, Sample>();
+
+			if (!first) {
+				ChipRange range = chip ? chipRange.build() : null;
+				for (int i = 0; i < samples.length; i++) {
+					if (chip) {
+						samples[i].setRange(range);
+					} else {
+						samples[i].setRange("1-16569");
+					}
+					result.put(sampleNames.get(i), samples[i]);
+				}
+			}
+
+			return result;
+
+		} finally {
+			stream.close();
+		}
+	}
+
+	private void decodeRecord(byte[] record, int sharedLength, int start, int gtKey, int afKey, int dpKey,
+			int[] columns, Sample[] samples) throws IOException {
+
+		int alleleCount = getInt32(record, 16) >>> 16;
+		int fieldCount = (getInt32(record, 20) >>> 24) & 0xff;
+		int sampleCount = getInt32(record, 20) & 0xffffff;
+
+		// shared part: CHROM, POS, rlen, QUAL, n_allele_info, n_fmt_sample, ID, alleles
+		int[] cursor = new int[] { 24 };
+		skipTypedValue(record, cursor);
+
+		String[] alleles = new String[alleleCount];
+		for (int i = 0; i < alleleCount; i++) {
+			alleles[i] = readTypedString(record, cursor).toUpperCase();
+		}
+
+		String reference = alleles[0];
+
+		// genotype part: for every field a key, a type and the values of all samples
+		int gtOffset = -1, gtType = 0, gtCount = 0;
+		int afOffset = -1, afType = 0, afCount = 0;
+		int dpOffset = -1, dpType = 0, dpCount = 0;
+
+		cursor[0] = sharedLength;
+
+		for (int field = 0; field < fieldCount; field++) {
+
+			int key = readTypedInt(record, cursor);
+			int descriptor = record[cursor[0]++] & 0xff;
+			int type = descriptor & 0x0f;
+			int count = descriptor >> 4;
+			if (count == 15) {
+				count = readTypedInt(record, cursor);
+			}
+
+			if (key == gtKey) {
+				gtOffset = cursor[0];
+				gtType = type;
+				gtCount = count;
+			} else if (key == afKey) {
+				afOffset = cursor[0];
+				afType = type;
+				afCount = count;
+			} else if (key == dpKey) {
+				dpOffset = cursor[0];
+				dpType = type;
+				dpCount = count;
+			}
+
+			cursor[0] += sampleCount * count * getSize(type);
+		}
+
+		if (gtOffset == -1) {
+			return;
+		}
+
+		int gtSize = getSize(gtType);
+
+		for (int i = 0; i < columns.length; i++) {
+
+			int column = columns[i];
+
+			// GT: (allele + 1) << 1 | phased, 0 is a missing allele. Shorter
+			// vectors are padded with end of vector (or missing, by htsjdk)
+			int offset = gtOffset + column * gtCount * gtSize;
+			int ploidy = 0;
+			int allele1 = -1;
+			int allele2 = -1;
+			boolean missing = false;
+			boolean same = true;
+
+			for (int j = 0; j < gtCount; j++) {
+				int value = getInt(record, offset + j * gtSize, gtType);
+				if (isEndOfVector(value, gtType) || isMissing(value, gtType)) {
+					break;
+				}
+				if ((value >> 1) == 0) {
+					missing = true;
+				}
+				int allele = (value >> 1) - 1;
+				if (ploidy == 0) {
+					allele1 = allele;
+				} else {
+					if (ploidy == 1) {
+						allele2 = allele;
+					}
+					same &= allele == allele1;
+				}
+				ploidy++;
+			}
+
+			// NO_CALL, MIXED and HOM_REF genotypes add no variants
+			if (ploidy == 0 || missing || (same && allele1 == 0)) {
+				continue;
+			}
+
+			boolean hasCoverage = false;
+			int coverage = 0;
+
+			if (dpOffset != -1 && dpCount > 0) {
+				int value = getInt(record, dpOffset + column * dpCount * getSize(dpType), dpType);
+				if (!isMissing(value, dpType) && !isEndOfVector(value, dpType)) {
+					hasCoverage = true;
+					coverage = value;
+				}
+			}
+
+			Sample sample = samples[i];
+
+			if (same) {
+
+				VariantDecoder.addHomozygous(sample, start, reference, alleles[allele1], hasCoverage, coverage);
+
+			} else if (afOffset != -1 && afCount > 0) {
+
+				double[] frequencies = readFrequencies(record, afOffset + column * afCount * getSize(afType), afType,
+						afCount);
+
+				if (frequencies == null) {
+					continue;
+				}
+
+				double hetFrequency = frequencies[0];
+				double hetFrequencySecond = frequencies.length > 1 ? frequencies[1] : 1 - hetFrequency;
+
+				VariantDecoder.addHeteroplasmy(sample, start, reference.charAt(0), getBase(alleles[allele1]),
+						getBase(alleles[allele2]), hetFrequency, hetFrequencySecond, hasCoverage, coverage);
+			}
+		}
+	}
+
+	private static char getBase(String allele) {
+		char base = allele.charAt(0);
+		return base == '*' ? 'd' : base;
+	}
+
+	/**
+	 * Decodes AF values the same way as the VCF text "0.4,0.6".
+	 *
+	 * @return null if the value is missing
+	 */
+	private static double[] readFrequencies(byte[] record, int offset, int type, int count) throws IOException {
+
+		if (type == TYPE_CHAR) {
+			String value = new String(record, offset, count, StandardCharsets.US_ASCII);
+			int end = value.indexOf('\0');
+			if (end != -1) {
+				value = value.substring(0, end);
+			}
+			if (value.isEmpty() || value.equals(".")) {
+				return null;
+			}
+			String[] splits = value.split(",");
+			double[] frequencies = new double[Math.min(2, splits.length)];
+			for (int i = 0; i < frequencies.length; i++) {
+				frequencies[i] = Double.valueOf(splits[i]);
+			}
+			return frequencies;
+		}
+
+		if (type != TYPE_FLOAT) {
+			throw new IOException("Unsupported type " + type + " for AF");
+		}
+
+		double[] frequencies = new double[Math.min(2, count)];
+		int size = 0;
+
+		for (int i = 0; i < frequencies.length; i++) {
+			int bits = getInt32(record, offset + i * 4);
+			if (bits == FLOAT_END_OF_VECTOR || (bits == FLOAT_MISSING && i > 0)) {
+				break;
+			}
+			if (bits == FLOAT_MISSING) {
+				return null;
+			}
+			// same double as parsing the value from the text
+			frequencies[size++] = Double.valueOf(Float.toString(Float.intBitsToFloat(bits)));
+		}
+
+		if (size < frequencies.length) {
+			double[] result = new double[size];
+			System.arraycopy(frequencies, 0, result, 0, size);
+			return result;
+		}
+
+		return frequencies;
+	}
+
+	/**
+	 * Reads the header text and fills the dictionary of the FILTER, INFO and
+	 * FORMAT keys (PASS first, IDX attributes are used if available).
+	 */
+	private static VCFHeader readHeader(InputStream stream, HashMap<String, Integer> dictionary) throws IOException {
+
+		byte[] magic = new byte[5];
+		if (readFully(stream, magic, 0, 5) < 5 || magic[0] != 'B' || magic[1] != 'C' || magic[2] != 'F'
+				|| magic[3] != 2) {
+			throw new IOException("Not a BCF2 file");
+		}
+
+		byte[] length = new byte[4];
+		readFully(stream, length, 0, 4);
+
+		byte[] text = new byte[getInt32(length, 0)];
+		if (readFully(stream, text, 0, text.length) < text.length) {
+			throw new EOFException("Truncated BCF header");
+		}
+
+		dictionary.put("PASS", 0);
+		int next = 1;
+
+		for (String line : new String(text, StandardCharsets.US_ASCII).split("\n")) {
+
+			Matcher matcher = DICTIONARY_LINE.matcher(line.trim());
+			if (!matcher.matches()) {
+				continue;
+			}
+
+			Matcher id = ID_FIELD.matcher(matcher.group(2));
+			if (!id.find()) {
+				continue;
+			}
+
+			Matcher idx = IDX_FIELD.matcher(matcher.group(2));
+			if (idx.find()) {
+				dictionary.put(id.group(1), Integer.valueOf(idx.group(1)));
+			} else if (!dictionary.containsKey(id.group(1))) {
+				dictionary.put(id.group(1), next++);
+			}
+		}
+
+		return (VCFHeader) new VCFCodec().readActualHeader(
+				new LineIteratorImpl(new SynchronousLineReader(new ByteArrayInputStream(text))));
+	}
+
+	private static int getKey(HashMap<String, Integer> dictionary, String key) {
+		Integer value = dictionary.get(key);
+		return value == null ? -1 : value;
+	}
+
+	private static int getSize(int type) {
+		switch (type) {
+		case TYPE_INT8:
+		case TYPE_CHAR:
+			return 1;
+		case TYPE_INT16:
+			return 2;
+		case TYPE_INT32:
+		case TYPE_FLOAT:
+			return 4;
+		default:
+			return 0;
+		}
+	}
+
+	private static int getInt(byte[] record, int offset, int type) {
+		switch (type) {
+		case TYPE_INT8:
+			return record[offset];
+		case TYPE_INT16:
+			return (short) ((record[offset] & 0xff) | ((record[offset + 1] & 0xff) << 8));
+		default:
+			return getInt32(record, offset);
+		}
+	}
+
+	private static boolean isMissing(int value, int type) {
+		switch (type) {
+		case TYPE_INT8:
+			return value == Byte.MIN_VALUE;
+		case TYPE_INT16:
+			return value == Short.MIN_VALUE;
+		default:
+			return value == Integer.MIN_VALUE;
+		}
+	}
+
+	private static boolean isEndOfVector(int value, int type) {
+		switch (type) {
+		case TYPE_INT8:
+			return value == Byte.MIN_VALUE + 1;
+		case TYPE_INT16:
+			return value == Short.MIN_VALUE + 1;
+		default:
+			return value == Integer.MIN_VALUE + 1;
+		}
+	}
+
+	private static int readTypedInt(byte[] record, int[] cursor) {
+		int type = record[cursor[0]++] & 0x0f;
+		int value = getInt(record, cursor[0], type);
+		cursor[0] += getSize(type);
+		return value;
+	}
+
+	private static String readTypedString(byte[] record, int[] cursor) {
+		int descriptor = record[cursor[0]++] & 0xff;
+		int count = descriptor >> 4;
+		if (count == 15) {
+			count = readTypedInt(record, cursor);
+		}
+		int end = cursor[0];
+		while (end < cursor[0] + count && record[end] != 0) {
+			end++;
+		}
+		String value = new String(record, cursor[0], end - cursor[0], StandardCharsets.US_ASCII);
+		cursor[0] += count;
+		return value;
+	}
+
+	private static void skipTypedValue(byte[] record, int[] cursor) {
+		int descriptor = record[cursor[0]++] & 0xff;
+		int count = descriptor >> 4;
+		if (count == 15) {
+			count = readTypedInt(record, cursor);
+		}
+		cursor[0] += count * getSize(descriptor & 0x0f);
+	}
+
+	private static int getInt32(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) | ((buffer[offset + 1] & 0xff) << 8) | ((buffer[offset + 2] & 0xff) << 16)
+				| ((buffer[offset + 3] & 0xff) << 24);
+	}
+
+	private static int readFully(InputStream stream, byte[] buffer, int offset, int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			int count = stream.read(buffer, offset + total, length - total);
+			if (count == -1) {
+				break;
+			}
+			total += count;
+		}
+		return total;
+	}
+
+	public int getDecompressionThreads() {
+		return decompressionThreads;
+	}
+
+	public void setDecompressionThreads(int decompressionThreads) {
+		this.decompressionThreads = decompressionThreads;
+	}
+
+}
@@ -0,0 +1,211 @@
+package importer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypeBuilder;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFFormatHeaderLine;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLineType;
+import htsjdk.variant.vcf.VCFInfoHeaderLine;
+import vcf.Sample;
+
+/**
+ * Checks that the {@link BcfImporter} creates the same samples as the
+ * {@link VcfImporter} for the equivalent VCF file. The VCF file is converted
+ * to BCF with the htsjdk writer, both files are loaded and every variant is
+ * compared. Without arguments a small VCF file with multiallelic records,
+ * INFO fields, deletions and heteroplasmies is used.
+ *
+ * <pre>
+ * java -cp . importer.BcfImporterCheck [file.vcf]
+ * </pre>
+ */
+public class BcfImporterCheck {
+
+	private static final String[] TEST_RECORDS = new String[] {
+			"##fileformat=VCFv4.2",
+			"##contig=<ID=chrM,length=16569>",
+			"##INFO=<ID=DP,Number=1,Type=Integer,Description=\"Total depth\">",
+			"##INFO=<ID=AC,Number=A,Type=Integer,Description=\"Allele count\">",
+			"##INFO=<ID=AN,Number=1,Type=Integer,Description=\"Allele number\">",
+			"##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">",
+			"##FORMAT=<ID=AF,Number=A,Type=Float,Description=\"Allele frequency\">",
+			"##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Depth\">",
+			"#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\tS2\tS3",
+			"chrM\t73\t.\tA\tG\t.\tPASS\t.\tGT:DP\t1:120\t0:80\t1:95",
+			"chrM\t150\t.\tC\tT,A\t.\tPASS\t.\tGT:AF:DP\t1:0.98:200\t2:0.99:150\t0/1:0.3,0:180",
+			"chrM\t263\t.\tA\tG\t.\tPASS\tDP=400;AC=3;AN=3\tGT:DP\t1:130\t1:140\t1:130",
+			"chrM\t310\t.\tTC\tT\t.\tPASS\tDP=300;AC=2;AN=3\tGT:DP\t1:100\t1:100\t0:100",
+			"chrM\t2706\t.\tA\tG,C,T\t.\tPASS\tDP=250\tGT:AF:DP\t1/2:0.6,0.4,0:90\t3:0.97,0,0:80\t0:.:80",
+			"chrM\t8860\t.\tA\tG\t.\tPASS\tDP=500;AC=3;AN=3\tGT:AF:DP\t0/1:0.45:170\t1:0.99:160\t1:1.0:170",
+			"chrM\t16519\t.\tT\tC\t.\tPASS\t.\tGT\t1\t.\t0/1" };
+
+	public static void main(String[] args) throws Exception {
+
+		File vcf;
+		if (args.length > 0) {
+			vcf = new File(args[0]);
+		} else {
+			vcf = File.createTempFile("bcf-check", ".vcf");
+			vcf.deleteOnExit();
+			FileWriter writer = new FileWriter(vcf);
+			try {
+				for (String line : TEST_RECORDS) {
+					writer.write(line + "\n");
+				}
+			} finally {
+				writer.close();
+			}
+		}
+
+		File bcf = File.createTempFile("bcf-check", ".bcf");
+		bcf.deleteOnExit();
+		writeBcf(vcf, bcf);
+
+		HashMap<String, Sample> expected = new VcfImporter().load(vcf, false);
+		HashMap<String, Sample> actual = new VcfImporter().load(bcf, false);
+
+		ArrayList<String> differences = compare(expected, actual);
+		for (String difference : differences) {
+			System.out.println(difference);
+		}
+
+		if (!differences.isEmpty()) {
+			System.out.println("BCF import differs from VCF import: " + differences.size() + " differences.");
+			System.exit(1);
+		}
+
+		System.out.println("BCF import equals VCF import: " + expected.size() + " samples.");
+	}
+
+	private static void writeBcf(File vcf, File bcf) throws IOException {
+
+		VCFFileReader reader = new VCFFileReader(vcf, false);
+
+		try {
+
+			VariantContextWriter writer = new VariantContextWriterBuilder()
+					.setReferenceDictionary(reader.getFileHeader().getSequenceDictionary()).setOutputFile(bcf)
+					.setOutputFileType(VariantContextWriterBuilder.OutputType.BCF)
+					.unsetOption(Options.INDEX_ON_THE_FLY).build();
+
+			try {
+				writer.writeHeader(reader.getFileHeader());
+				for (VariantContext context : reader) {
+					writer.add(decode(context, reader.getFileHeader()));
+				}
+			} finally {
+				writer.close();
+			}
+
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Converts the text values of the INFO and FORMAT fields to the numbers the
+	 * BCF writer expects. The writer would decode them with htsjdk's own
+	 * decoder, which needs libraries that are not part of this build.
+	 */
+	private static VariantContext decode(VariantContext context, VCFHeader header) {
+
+		HashMap<String, Object> info = new HashMap<String, Object>();
+		for (Map.Entry<String, Object> entry : context.getAttributes().entrySet()) {
+			VCFInfoHeaderLine line = header.getInfoHeaderLine(entry.getKey());
+			info.put(entry.getKey(), decode(entry.getValue(), line == null ? null : line.getType()));
+		}
+
+		ArrayList<Genotype> genotypes = new ArrayList<Genotype>();
+		for (Genotype genotype : context.getGenotypes()) {
+			GenotypeBuilder builder = new GenotypeBuilder(genotype).noAttributes();
+			for (Map.Entry<String, Object> entry : genotype.getExtendedAttributes().entrySet()) {
+				VCFFormatHeaderLine line = header.getFormatHeaderLine(entry.getKey());
+				builder.attribute(entry.getKey(), decode(entry.getValue(), line == null ? null : line.getType()));
+			}
+			genotypes.add(builder.make());
+		}
+
+		return new VariantContextBuilder(context).attributes(info).genotypes(genotypes).fullyDecoded(true).make();
+	}
+
+	private static Object decode(Object value, VCFHeaderLineType type) {
+
+		if (!(value instanceof String) || (type != VCFHeaderLineType.Integer && type != VCFHeaderLineType.Float)) {
+			return value;
+		}
+
+		String[] tiles = ((String) value).split(",");
+		ArrayList<Object> values = new ArrayList<Object>();
+		for (String tile : tiles) {
+			if (tile.equals(".")) {
+				values.add(null);
+			} else if (type == VCFHeaderLineType.Integer) {
+				values.add(Integer.valueOf(tile));
+			} else {
+				values.add(Double.valueOf(tile));
+			}
+		}
+
+		return values.size() == 1 ? values.get(0) : values;
+	}
+
+	private static ArrayList<String> compare(HashMap<String, Sample> expected, HashMap<String, Sample> actual) {
+
+		ArrayList<String> differences = new ArrayList<String>();
+
+		for (String id : expected.keySet()) {
+
+			Sample sample = actual.get(id);
+			if (sample == null) {
+				differences.add(id + ": missing in BCF import");
+				continue;
+			}
+
+			String expectedVariants = toString(expected.get(id));
+			String actualVariants = toString(sample);
+			if (!expectedVariants.equals(actualVariants)) {
+				differences.add(id + ": VCF " + expectedVariants);
+				differences.add(id + ": BCF " + actualVariants);
+			}
+		}
+
+		for (String id : actual.keySet()) {
+			if (!expected.containsKey(id)) {
+				differences.add(id + ": missing in VCF import");
+			}
+		}
+
+		return differences;
+	}
+
+	private static String toString(Sample sample) {
+
+		StringBuilder builder = new StringBuilder();
+		builder.append(sample.getRange()).append(' ').append(sample.isChip());
+
+		for (int i = 0; i < sample.getSize(); i++) {
+			int index = sample.getIndexInOrder(i);
+			builder.append(' ').append(sample.getPosAt(index)).append(sample.getRefAt(index)).append(sample.getVariantAt(index));
+			builder.append(':').append(sample.getTypeAt(index)).append(':').append(sample.getLevelAt(index));
+			builder.append(':').append(sample.getMajorAt(index)).append(sample.getMinorAt(index));
+			builder.append(':').append(sample.getMajorLevelAt(index)).append(':').append(sample.getMinorLevelAt(index));
+			builder.append(':').append(sample.getCoverageAt(index)).append(':').append(sample.getInsertionAt(index));
+		}
+
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,647 @@
+package importer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.tribble.readers.LineIterator;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+import vcf.ChipRange;
+import vcf.Sample;
+
+/**
+ * Imports VCF files without creating VariantContext or Genotype objects. The
+ * records are tokenized on the raw bytes and only the GT, AF and DP values of
+ * the requested sample columns are parsed. Intended for our narrow files
+ * (chrM, GT:AF:DP), the samples are the same as the ones of
+ * {@link VcfImporter}, which remains the reference implementation.
+ */
+public class FastVcfImporter {
+
+	private static final byte TAB = '\t';
+	private static final byte COLON = ':';
+	private static final byte COMMA = ',';
+
+	private static final double[] POWERS_OF_TEN = new double[23];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	// threads used to inflate bgzipped files, 0 inflates on the calling thread
+	private int decompressionThreads = 0;
+
+	// threads used to decode the sample columns, 1 decodes on the calling thread
+	private int threads = 1;
+
+	// current line
+	private byte[] buffer = new byte[1 << 16];
+	private int lineStart;
+	private int lineEnd;
+	private int position;
+	private int limit;
+	private boolean eof;
+	private InputStream stream;
+
+	// FORMAT of the previous record and the positions of GT, AF and DP in it
+	private byte[] format = new byte[0];
+	private int gtField;
+	private int afField;
+	private int dpField;
+
+	/**
+	 * @param sampleNames The samples to load or null for all samples
+	 */
+	public HashMap<String, Sample> load(File file, boolean chip, List<String> sampleNames) throws IOException {
+
+		stream = open(file);
+		ShardedSampleDecoder shards = null;
+		lineStart = 0;
+		lineEnd = 0;
+		position = 0;
+		limit = 0;
+		eof = false;
+		format = new byte[0];
+
+		try {
+
+			VCFHeader vcfHeader = readHeader();
+
+			if (sampleNames == null) {
+				sampleNames = vcfHeader.getSampleNamesInOrder();
+			}
+
+			// sample slot of every column or -1 if the column is skipped
+			int[] slots = new int[vcfHeader.getNGenotypeSamples()];
+			Arrays.fill(slots, -1);
+			int lastColumn = -1;
+
+			for (int i = 0; i < sampleNames.size(); i++) {
+				Integer column = vcfHeader.getSampleNameToOffset().get(sampleNames.get(i));
+				if (column == null) {
+					throw new IOException("Sample " + sampleNames.get(i) + " not found in " + file.getName());
+				}
+				slots[column] = i;
+				lastColumn = Math.max(lastColumn, column);
+			}
+
+			Sample[] samples = new Sample[sampleNames.size()];
+
+			// chip arrays: the covered positions are collected in the same pass
+			ChipRange.Builder chipRange = chip ? new ChipRange.Builder() : null;
+
+			boolean first = true;
+			int[] fields = new int[9];
+
+			if (threads > 1 && sampleNames.size() >= threads * ShardedSampleDecoder.MIN_SAMPLES_PER_SHARD) {
+				shards = new ShardedSampleDecoder(threads, slots, samples);
+			}
+
+			while (nextLine()) {
+
+				if (lineEnd == lineStart) {
+					continue;
+				}
+
+				// CHROM ... INFO, FORMAT and the samples are optional
+				int field = 0;
+				int offset = lineStart;
+				fields[0] = offset;
+				while (field < 8) {
+					int tab = indexOf(buffer, offset, lineEnd, TAB);
+					if (tab == lineEnd) {
+						if (field < 7) {
+							throw new IOException("Invalid VCF line: " + new String(buffer, lineStart,
+									Math.min(lineEnd - lineStart, 100), StandardCharsets.US_ASCII));
+						}
+						break;
+					}
+					field++;
+					fields[field] = tab + 1;
+					offset = tab + 1;
+				}
+
+				int start = parseInt(buffer, fields[1], fields[2] - 1);
+
+				if (start > 16569) {
+					System.out.println("Error! Position " + start
+							+ " outside the range. Please double check if VCF includes variants mapped to rCRS only.");
+				}
+
+				if (chip) {
+					chipRange.add(start);
+				}
+
+				if (first) {
+					for (int i = 0; i < samples.length; i++) {
+						samples[i] = new Sample();
+						samples[i].setId(sampleNames.get(i));
+					}
+					first = false;
+				}
+
+				String reference = toUpperCase(buffer, fields[3], fields[4] - 1);
+				String[] alleles = parseAlleles(reference, buffer, fields[4], fields[5] - 1);
+
+				// sites only
+				if (field < 8) {
+					continue;
+				}
+
+				int formatEnd = indexOf(buffer, fields[8], lineEnd, TAB);
+
+				if (formatEnd == lineEnd) {
+					continue;
+				}
+
+				updateFormat(buffer, fields[8], formatEnd);
+
+				if (gtField == -1) {
+					continue;
+				}
+
+				Record record = new Record(buffer, start, reference, alleles, gtField, afField, dpField);
+
+				if (shards != null) {
+					shards.add(record, formatEnd + 1, lineEnd);
+				} else {
+					decodeColumns(record, formatEnd + 1, lineEnd, 0, lastColumn, slots, samples);
+				}
+			}
+
+			if (shards != null) {
+				shards.finish();
+				shards = null;
+			}
+
+			HashMap<String, Sample> result = new HashMap<String, Sample>();
+
+			if (!first) {
+				ChipRange range = chip ? chipRange.build() : null;
+				for (int i = 0; i < samples.length; i++) {
+					if (chip) {
+						samples[i].setRange(range);
+					} else {
+						samples[i].setRange("1-16569");
+					}
+					result.put(sampleNames.get(i), samples[i]);
+				}
+			}
+
+			return result;
+
+		} finally {
+			if (shards != null) {
+				shards.abort();
+			}
+			stream.close();
+		}
+	}
+
+	/**
+	 * Decodes the columns firstColumn to lastColumn of a record. offset is the
+	 * start of firstColumn in the line.
+	 */
+	static void decodeColumns(Record record, int offset, int lineEnd, int firstColumn, int lastColumn, int[] slots,
+			Sample[] samples) throws IOException {
+
+		int column = firstColumn;
+
+		while (offset <= lineEnd && column <= lastColumn) {
+
+			int end = indexOf(record.line, offset, lineEnd, TAB);
+
+			if (slots[column] != -1) {
+				decodeSample(record, offset, end, samples[slots[column]]);
+			}
+
+			offset = end + 1;
+			column++;
+		}
+	}
+
+	private static void decodeSample(Record record, int from, int to, Sample sample) throws IOException {
+
+		byte[] line = record.line;
+		int gtField = record.gtField;
+		int afField = record.afField;
+		int dpField = record.dpField;
+		int start = record.start;
+		String reference = record.reference;
+		String[] alleles = record.alleles;
+
+		// locate GT, AF and DP, missing trailing fields are missing values
+		int gtFrom = -1, gtTo = -1, afFrom = -1, afTo = -1, dpFrom = -1, dpTo = -1;
+		int field = 0;
+		int offset = from;
+
+		while (offset <= to) {
+			int end = indexOf(line, offset, to, COLON);
+			if (field == gtField) {
+				gtFrom = offset;
+				gtTo = end;
+			} else if (field == afField) {
+				afFrom = offset;
+				afTo = end;
+			} else if (field == dpField) {
+				dpFrom = offset;
+				dpTo = end;
+			}
+			offset = end + 1;
+			field++;
+		}
+
+		if (gtFrom == -1) {
+			return;
+		}
+
+		// GT
+		int ploidy = 0;
+		int allele1 = -1;
+		int allele2 = -1;
+		boolean missing = false;
+		boolean same = true;
+		offset = gtFrom;
+
+		while (offset < gtTo) {
+			int end = offset;
+			while (end < gtTo && line[end] != '/' && line[end] != '|') {
+				end++;
+			}
+			int allele;
+			if (end - offset == 1 && line[offset] == '.') {
+				missing = true;
+				allele = -1;
+			} else {
+				allele = parseInt(line, offset, end);
+			}
+			if (ploidy == 0) {
+				allele1 = allele;
+			} else {
+				if (ploidy == 1) {
+					allele2 = allele;
+				}
+				same &= allele == allele1;
+			}
+			ploidy++;
+			offset = end + 1;
+		}
+
+		// NO_CALL, MIXED and HOM_REF genotypes add no variants
+		if (ploidy == 0 || missing || (same && allele1 == 0)) {
+			return;
+		}
+
+		boolean hasCoverage = dpFrom != -1 && !isMissing(line, dpFrom, dpTo);
+		int coverage = hasCoverage ? parseInt(line, dpFrom, dpTo) : 0;
+
+		if (same) {
+
+			VariantDecoder.addHomozygous(sample, start, reference, alleles[allele1], hasCoverage, coverage);
+
+		} else if (afFrom != -1 && !isMissing(line, afFrom, afTo)) {
+
+			// like String.split(","): trailing empty values are removed
+			while (afTo > afFrom && line[afTo - 1] == COMMA) {
+				afTo--;
+			}
+
+			int comma = indexOf(line, afFrom, afTo, COMMA);
+			double hetFrequency = parseDouble(line, afFrom, comma);
+			double hetFrequencySecond;
+
+			if (comma < afTo) {
+				hetFrequencySecond = parseDouble(line, comma + 1, indexOf(line, comma + 1, afTo, COMMA));
+			} else {
+				hetFrequencySecond = 1 - hetFrequency;
+			}
+
+			VariantDecoder.addHeteroplasmy(sample, start, reference.charAt(0), getBase(alleles[allele1]),
+					getBase(alleles[allele2]), hetFrequency, hetFrequencySecond, hasCoverage, coverage);
+		}
+	}
+
+	private void updateFormat(byte[] line, int from, int to) throws IOException {
+
+		int length = to - from;
+
+		if (length == format.length) {
+			boolean equal = true;
+			for (int i = 0; i < length && equal; i++) {
+				equal = line[from + i] == format[i];
+			}
+			if (equal) {
+				return;
+			}
+		}
+
+		format = new byte[length];
+		System.arraycopy(line, from, format, 0, length);
+
+		gtField = -1;
+		afField = -1;
+		dpField = -1;
+
+		int field = 0;
+		int offset = 0;
+		while (offset <= length) {
+			int end = indexOf(format, offset, length, COLON);
+			String key = new String(format, offset, end - offset, StandardCharsets.US_ASCII);
+			if (key.equals("GT")) {
+				gtField = field;
+			} else if (key.equals("AF")) {
+				afField = field;
+			} else if (key.equals("DP")) {
+				dpField = field;
+			}
+			offset = end + 1;
+			field++;
+		}
+
+		if (gtField > 0) {
+			throw new IOException("GT field must be at the first position for genotypes when present");
+		}
+	}
+
+	/**
+	 * The fields of a record that are shared by all samples.
+	 */
+	static class Record {
+
+		final byte[] line;
+		final int start;
+		final String reference;
+		final String[] alleles;
+		final int gtField;
+		final int afField;
+		final int dpField;
+
+		Record(byte[] line, int start, String reference, String[] alleles, int gtField, int afField, int dpField) {
+			this.line = line;
+			this.start = start;
+			this.reference = reference;
+			this.alleles = alleles;
+			this.gtField = gtField;
+			this.afField = afField;
+			this.dpField = dpField;
+		}
+
+		Record copy(int from, int to) {
+			byte[] copy = new byte[to - from];
+			System.arraycopy(line, from, copy, 0, copy.length);
+			return new Record(copy, start, reference, alleles, gtField, afField, dpField);
+		}
+	}
+
+	private static String[] parseAlleles(String reference, byte[] line, int from, int to) {
+
+		if (to - from == 1 && line[from] == '.') {
+			return new String[] { reference };
+		}
+
+		ArrayList<String> alleles = new ArrayList<String>();
+		alleles.add(reference);
+
+		int offset = from;
+		while (offset <= to) {
+			int end = indexOf(line, offset, to, COMMA);
+			alleles.add(toUpperCase(line, offset, end));
+			offset = end + 1;
+		}
+
+		return alleles.toArray(new String[alleles.size()]);
+	}
+
+	private static char getBase(String allele) {
+		char base = allele.charAt(0);
+		return base == '*' ? 'd' : base;
+	}
+
+	private static String toUpperCase(byte[] line, int from, int to) {
+		char[] chars = new char[to - from];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toUpperCase((char) (line[from + i] & 0xff));
+		}
+		return new String(chars);
+	}
+
+	private static boolean isMissing(byte[] line, int from, int to) {
+		return to - from == 1 && line[from] == '.';
+	}
+
+	static int indexOf(byte[] line, int from, int to, byte value) {
+		for (int i = from; i < to; i++) {
+			if (line[i] == value) {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	/**
+	 * Same result as Integer.valueOf on the text.
+	 */
+	static int parseInt(byte[] line, int from, int to) {
+
+		int length = to - from;
+
+		if (length > 0 && length < 10) {
+			int value = 0;
+			int i = from;
+			boolean negative = line[i] == '-';
+			if (negative || line[i] == '+') {
+				i++;
+			}
+			boolean digits = i < to;
+			for (; i < to && digits; i++) {
+				int digit = line[i] - '0';
+				if (digit < 0 || digit > 9) {
+					digits = false;
+				}
+				value = value * 10 + digit;
+			}
+			if (digits) {
+				return negative ? -value : value;
+			}
+		}
+
+		return Integer.valueOf(new String(line, from, length, StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Same result as Double.valueOf on the text. Plain decimals with up to 15
+	 * digits are exact doubles divided by an exact power of ten, which is
+	 * correctly rounded. Everything else is parsed by Double.valueOf.
+	 */
+	static double parseDouble(byte[] line, int from, int to) {
+
+		int i = from;
+		boolean negative = false;
+
+		if (i < to && (line[i] == '-' || line[i] == '+')) {
+			negative = line[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int decimals = -1;
+		boolean plain = i < to;
+
+		for (; i < to && plain; i++) {
+			byte c = line[i];
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (decimals >= 0) {
+					decimals++;
+				}
+			} else if (c == '.' && decimals == -1) {
+				decimals = 0;
+			} else {
+				plain = false;
+			}
+		}
+
+		if (plain && digits > 0 && digits <= 15 && decimals < POWERS_OF_TEN.length) {
+			double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+			return negative ? -value : value;
+		}
+
+		return Double.valueOf(new String(line, from, to - from, StandardCharsets.US_ASCII));
+	}
+
+	private VCFHeader readHeader() throws IOException {
+
+		final ArrayList<String> lines = new ArrayList<String>();
+
+		while (nextLine()) {
+			String line = new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.US_ASCII);
+			lines.add(line);
+			if (!line.startsWith("##")) {
+				break;
+			}
+		}
+
+		return (VCFHeader) new VCFCodec().readActualHeader(new LineIterator() {
+
+			private int index = 0;
+
+			@Override
+			public boolean hasNext() {
+				return index < lines.size();
+			}
+
+			@Override
+			public String next() {
+				return lines.get(index++);
+			}
+
+			@Override
+			public String peek() {
+				return lines.get(index);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		});
+	}
+
+	/**
+	 * Moves to the next line, the line is buffer[lineStart, lineEnd) without the
+	 * line break.
+	 */
+	private boolean nextLine() throws IOException {
+
+		int scan = position;
+
+		while (true) {
+
+			int newline = indexOf(buffer, scan, limit, (byte) '\n');
+
+			if (newline < limit || (eof && position < limit)) {
+				lineStart = position;
+				lineEnd = newline;
+				if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+					lineEnd--;
+				}
+				position = Math.min(limit, newline + 1);
+				return true;
+			}
+
+			if (eof) {
+				return false;
+			}
+
+			// move the incomplete line to the front and read more
+			int remaining = limit - position;
+			System.arraycopy(buffer, position, buffer, 0, remaining);
+			if (remaining == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			limit = remaining;
+			scan = remaining;
+			position = 0;
+
+			int count = stream.read(buffer, limit, buffer.length - limit);
+
+			if (count == -1) {
+				eof = true;
+			} else {
+				limit += count;
+			}
+		}
+	}
+
+	private InputStream open(File file) throws IOException {
+
+		if (!file.getName().endsWith(".gz")) {
+			return new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		}
+
+		if (ParallelBgzfInputStream.isBgzfFile(file)) {
+			if (decompressionThreads > 0) {
+				return new ParallelBgzfInputStream(file, decompressionThreads);
+			}
+			return new BlockCompressedInputStream(file);
+		}
+
+		return new GZIPInputStream(new FileInputStream(file), 1 << 16);
+	}
+
+	public int getDecompressionThreads() {
+		return decompressionThreads;
+	}
+
+	public void setDecompressionThreads(int decompressionThreads) {
+		this.decompressionThreads = decompressionThreads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * With more than one thread the sample columns are split into fixed shards,
+	 * each shard is decoded by its own worker.
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+}
@@ -0,0 +1,306 @@
+package importer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.CSIIndex;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.tribble.Tribble;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.SynchronousLineReader;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
+
+/**
+ * Reads only the mitochondrial contig of an indexed VCF file. Tabix (.tbi) and
+ * tribble (.idx) indices are queried through {@link VCFFileReader}, CSI (.csi)
+ * indices through {@link CSIIndex}. Blocks of other contigs are never
+ * decompressed or parsed, so whole genome VCF files can be used as input.
+ * Like VCFFileReader every call of {@link #iterator()} starts at the first
+ * record.
+ */
+public class IndexedVcfReader implements Iterable<VariantContext>, Closeable {
+
+	// names of the mitochondrial contig, in order of preference
+	public static final String[] CONTIG_ALIASES = { "chrM", "MT", "chrMT", "M", "NC_012920", "NC_012920.1", "rCRS" };
+
+	// largest position a tabix or csi index with default parameters can address
+	static final int MAX_POSITION = (1 << 29) - 1;
+
+	private final File file;
+	private final String contig;
+	private final VCFHeader header;
+
+	// tabix and tribble indices
+	private VCFFileReader vcfReader;
+
+	// csi indices
+	private CSIIndex csiIndex;
+	private int csiReference;
+
+	private final ArrayList<Closeable> iterators = new ArrayList<Closeable>();
+
+	private IndexedVcfReader(File file, File index) throws IOException {
+
+		this.file = file;
+
+		List<String> sequenceNames;
+
+		if (index.getName().endsWith(".csi")) {
+			csiIndex = new CSIIndex(index, false, null);
+			sequenceNames = readSequenceNames(csiIndex.getAuxData());
+			header = readHeader(file);
+		} else {
+			sequenceNames = IndexFactory.loadIndex(index.getAbsolutePath()).getSequenceNames();
+			vcfReader = new VCFFileReader(file, index, true);
+			header = vcfReader.getFileHeader();
+		}
+
+		contig = findContig(sequenceNames);
+
+		if (csiIndex != null) {
+			csiReference = sequenceNames.indexOf(contig);
+		}
+	}
+
+	/**
+	 * Opens the mitochondrial contig of the file.
+	 *
+	 * @return null if the file has no index or the index has no mitochondrial
+	 *         contig
+	 */
+	public static IndexedVcfReader open(File file) throws IOException {
+
+		File index = findIndex(file);
+
+		if (index == null) {
+			return null;
+		}
+
+		IndexedVcfReader reader = new IndexedVcfReader(file, index);
+
+		if (reader.getContig() == null) {
+			System.out.println("No mitochondrial contig found in " + index.getName() + ", reading whole file.");
+			reader.close();
+			return null;
+		}
+
+		return reader;
+	}
+
+	/**
+	 * @return The .tbi, .csi or .idx index of the file or null
+	 */
+	public static File findIndex(File file) {
+
+		File[] candidates = new File[] { Tribble.tabixIndexFile(file), new File(file.getPath() + ".csi"),
+				Tribble.indexFile(file) };
+
+		for (File candidate : candidates) {
+			if (candidate.isFile()) {
+				return candidate;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return The first alias found in the sequence names or null. Aliases are
+	 *         compared case sensitive first, then case insensitive.
+	 */
+	public static String findContig(List<String> sequenceNames) {
+
+		for (String alias : CONTIG_ALIASES) {
+			if (sequenceNames.contains(alias)) {
+				return alias;
+			}
+		}
+
+		for (String alias : CONTIG_ALIASES) {
+			for (String name : sequenceNames) {
+				if (name.equalsIgnoreCase(alias)) {
+					return name;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	public String getContig() {
+		return contig;
+	}
+
+	public VCFHeader getFileHeader() {
+		return header;
+	}
+
+	@Override
+	public Iterator<VariantContext> iterator() {
+
+		if (vcfReader != null) {
+			CloseableIterator<VariantContext> query = vcfReader.query(contig, 1, MAX_POSITION);
+			iterators.add(query);
+			return query;
+		}
+
+		try {
+			CsiIterator query = new CsiIterator();
+			iterators.add(query);
+			return query;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		for (Closeable iterator : iterators) {
+			try {
+				iterator.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		iterators.clear();
+		if (vcfReader != null) {
+			vcfReader.close();
+		}
+	}
+
+	private static VCFHeader readHeader(File file) throws IOException {
+		BlockCompressedInputStream stream = new BlockCompressedInputStream(file);
+		try {
+			return (VCFHeader) new VCFCodec()
+					.readActualHeader(new LineIteratorImpl(new SynchronousLineReader(stream)));
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Parses the tabix style header stored in the auxiliary data of a csi index.
+	 */
+	private static List<String> readSequenceNames(byte[] aux) throws IOException {
+
+		ArrayList<String> names = new ArrayList<String>();
+
+		if (aux == null || aux.length < 28) {
+			throw new IOException("CSI index without sequence names. Please index the VCF file with tabix.");
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(aux).order(ByteOrder.LITTLE_ENDIAN);
+
+		// format, col_seq, col_beg, col_end, meta, skip
+		buffer.position(24);
+		int length = buffer.getInt();
+
+		int start = buffer.position();
+		int end = Math.min(aux.length, start + length);
+
+		for (int i = start; i < end; i++) {
+			if (aux[i] == 0) {
+				names.add(new String(aux, start, i - start, "US-ASCII"));
+				start = i + 1;
+			}
+		}
+
+		return names;
+	}
+
+	/**
+	 * Decodes the lines of all chunks the csi index returns for the contig.
+	 */
+	class CsiIterator implements Iterator<VariantContext>, Closeable {
+
+		private final BlockCompressedInputStream stream;
+		private final VCFCodec codec = new VCFCodec();
+		private final List<Chunk> chunks;
+
+		private int chunk = -1;
+		private VariantContext next;
+
+		CsiIterator() throws IOException {
+			stream = new BlockCompressedInputStream(file);
+			codec.readActualHeader(new LineIteratorImpl(new SynchronousLineReader(stream)));
+
+			BAMFileSpan span = csiReference == -1 ? null : csiIndex.getSpanOverlapping(csiReference, 1, MAX_POSITION);
+			chunks = span == null ? new ArrayList<Chunk>() : span.getChunks();
+
+			next = advance();
+		}
+
+		private VariantContext advance() throws IOException {
+
+			while (true) {
+
+				if (chunk == -1 || stream.getFilePointer() >= chunks.get(chunk).getChunkEnd()) {
+					chunk++;
+					if (chunk >= chunks.size()) {
+						close();
+						return null;
+					}
+					stream.seek(chunks.get(chunk).getChunkStart());
+				}
+
+				String line = stream.readLine();
+
+				if (line == null) {
+					close();
+					return null;
+				}
+
+				VariantContext vc = codec.decode(line);
+
+				// chunks can start before the contig or contain records of other contigs
+				if (vc != null && vc.getContig().equals(contig)) {
+					return vc;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public VariantContext next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			VariantContext current = next;
+			try {
+				next = advance();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return current;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() throws IOException {
+			stream.close();
+		}
+	}
+
+}
@@ -0,0 +1,277 @@
+package importer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Reads a BGZF compressed file and inflates its blocks on a thread pool. A
+ * reader thread splits the file into blocks and keeps a bounded number of them
+ * ahead of the consumer. The decompressed bytes are returned in file order, so
+ * decompression runs in parallel to the parsing of the lines.
+ */
+public class ParallelBgzfInputStream extends InputStream {
+
+	// compressed blocks that are read and inflated ahead of the consumer
+	static final int READ_AHEAD_PER_THREAD = 8;
+
+	private static final byte[] END = new byte[0];
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	private final InputStream input;
+	private final ExecutorService executor;
+	private final BlockingQueue<Future<byte[]>> blocks;
+	private final Thread reader;
+
+	private byte[] current = new byte[0];
+	private int offset = 0;
+	private boolean finished = false;
+	private volatile boolean closed = false;
+
+	public ParallelBgzfInputStream(File file, int threads) throws IOException {
+
+		this.input = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+
+		final int poolSize = Math.max(1, threads);
+
+		this.executor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "bgzf-inflater");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		this.blocks = new ArrayBlockingQueue<Future<byte[]>>(poolSize * READ_AHEAD_PER_THREAD);
+
+		this.reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readBlocks();
+			}
+		}, "bgzf-reader");
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	/**
+	 * @return true if the file starts with a BGZF block
+	 */
+	public static boolean isBgzfFile(File file) throws IOException {
+		InputStream stream = new BufferedInputStream(new FileInputStream(file));
+		try {
+			return BlockCompressedInputStream.isValidFile(stream);
+		} finally {
+			stream.close();
+		}
+	}
+
+	private void readBlocks() {
+		try {
+			byte[] block;
+			while (!closed && (block = readBlock()) != null) {
+				final byte[] compressed = block;
+				blocks.put(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						return inflate(compressed);
+					}
+				}));
+			}
+			blocks.put(completed(END));
+		} catch (InterruptedException e) {
+			// closed by the consumer
+		} catch (final Exception e) {
+			try {
+				blocks.put(failed(e));
+			} catch (InterruptedException e1) {
+				// closed by the consumer
+			}
+		}
+	}
+
+	private byte[] readBlock() throws IOException {
+
+		byte[] header = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+
+		int count = readFully(header, 0, header.length);
+
+		if (count == 0) {
+			return null;
+		}
+
+		if (count < header.length || header[0] != BlockCompressedStreamConstants.GZIP_ID1
+				|| (header[1] & 0xff) != BlockCompressedStreamConstants.GZIP_ID2
+				|| header[12] != BlockCompressedStreamConstants.BGZF_ID1
+				|| header[13] != BlockCompressedStreamConstants.BGZF_ID2) {
+			throw new IOException(BlockCompressedInputStream.INCORRECT_HEADER_SIZE_MSG);
+		}
+
+		int blockLength = unpackInt16(header, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+
+		if (blockLength < BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH
+				+ BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH
+				|| blockLength > BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE) {
+			throw new IOException(BlockCompressedInputStream.UNEXPECTED_BLOCK_LENGTH_MSG + blockLength);
+		}
+
+		byte[] block = new byte[blockLength];
+		System.arraycopy(header, 0, block, 0, header.length);
+
+		if (readFully(block, header.length, blockLength - header.length) < blockLength - header.length) {
+			throw new IOException(BlockCompressedInputStream.PREMATURE_END_MSG);
+		}
+
+		return block;
+	}
+
+	private static byte[] inflate(byte[] block) throws DataFormatException, IOException {
+
+		int uncompressedLength = unpackInt32(block, block.length - 4);
+		byte[] result = new byte[uncompressedLength];
+
+		if (uncompressedLength == 0) {
+			return result;
+		}
+
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(block, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, block.length
+				- BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH);
+
+		int inflated = inflater.inflate(result, 0, uncompressedLength);
+
+		if (inflated != uncompressedLength) {
+			throw new IOException("Did not inflate expected amount");
+		}
+
+		return result;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextBlock()) {
+			return -1;
+		}
+		return current[offset++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextBlock()) {
+			return -1;
+		}
+		int count = Math.min(len, current.length - offset);
+		System.arraycopy(current, offset, buffer, off, count);
+		offset += count;
+		return count;
+	}
+
+	private boolean nextBlock() throws IOException {
+
+		while (offset >= current.length) {
+
+			if (finished) {
+				return false;
+			}
+
+			try {
+				byte[] block = blocks.take().get();
+				if (block == END) {
+					finished = true;
+					return false;
+				}
+				current = block;
+				offset = 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		reader.interrupt();
+		executor.shutdownNow();
+		input.close();
+	}
+
+	private int readFully(byte[] buffer, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int count = input.read(buffer, off + total, len - total);
+			if (count == -1) {
+				break;
+			}
+			total += count;
+		}
+		return total;
+	}
+
+	private static int unpackInt16(byte[] buffer, int off) {
+		return (buffer[off] & 0xff) | ((buffer[off + 1] & 0xff) << 8);
+	}
+
+	private static int unpackInt32(byte[] buffer, int off) {
+		return (buffer[off] & 0xff) | ((buffer[off + 1] & 0xff) << 8) | ((buffer[off + 2] & 0xff) << 16)
+				| ((buffer[off + 3] & 0xff) << 24);
+	}
+
+	private static Future<byte[]> completed(final byte[] value) {
+		FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return value;
+			}
+		});
+		task.run();
+		return task;
+	}
+
+	private static Future<byte[]> failed(final Exception exception) {
+		FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				throw exception;
+			}
+		});
+		task.run();
+		return task;
+	}
+
+}
@@ -0,0 +1,116 @@
+package importer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import htsjdk.tribble.readers.LineIterator;
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.SynchronousLineReader;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+
+/**
+ * Reads a bgzipped VCF file through a {@link ParallelBgzfInputStream}. The
+ * records are the same as the ones of {@link htsjdk.variant.vcf.VCFFileReader},
+ * but the blocks are inflated by several threads ahead of the parser. Like
+ * VCFFileReader every call of {@link #iterator()} starts at the first record.
+ */
+public class ParallelVcfReader implements Iterable<VariantContext>, Closeable {
+
+	private final File file;
+	private final int threads;
+	private final VCFHeader header;
+
+	private final ArrayList<ParallelBgzfInputStream> streams = new ArrayList<ParallelBgzfInputStream>();
+
+	public ParallelVcfReader(File file, int threads) throws IOException {
+		this.file = file;
+		this.threads = threads;
+
+		ParallelBgzfInputStream stream = new ParallelBgzfInputStream(file, threads);
+		try {
+			this.header = (VCFHeader) new VCFCodec()
+					.readActualHeader(new LineIteratorImpl(new SynchronousLineReader(stream)));
+		} finally {
+			stream.close();
+		}
+	}
+
+	public VCFHeader getFileHeader() {
+		return header;
+	}
+
+	@Override
+	public Iterator<VariantContext> iterator() {
+
+		final ParallelBgzfInputStream stream;
+		try {
+			stream = new ParallelBgzfInputStream(file, threads);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		streams.add(stream);
+
+		final VCFCodec codec = new VCFCodec();
+		final LineIterator lines = new LineIteratorImpl(new SynchronousLineReader(stream));
+		codec.readActualHeader(lines);
+
+		return new Iterator<VariantContext>() {
+
+			private VariantContext next = advance();
+
+			private VariantContext advance() {
+				while (lines.hasNext()) {
+					VariantContext vc = codec.decode(lines.next());
+					if (vc != null) {
+						return vc;
+					}
+				}
+				closeStream(stream);
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public VariantContext next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				VariantContext current = next;
+				next = advance();
+				return current;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private void closeStream(ParallelBgzfInputStream stream) {
+		try {
+			stream.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		streams.remove(stream);
+	}
+
+	@Override
+	public void close() {
+		for (ParallelBgzfInputStream stream : new ArrayList<ParallelBgzfInputStream>(streams)) {
+			closeStream(stream);
+		}
+	}
+
+}
@@ -0,0 +1,221 @@
+package importer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import importer.FastVcfImporter.Record;
+import vcf.Sample;
+
+/**
+ * Decodes the sample columns of the records on several workers. The requested
+ * columns are split into contiguous shards, every worker owns one shard and
+ * is the only one that writes to its Sample objects, so no locks are needed.
+ * The reading thread collects the records in batches and hands every batch to
+ * all workers. A worker decodes the records in file order, so the samples are
+ * the same as with a single thread.
+ */
+class ShardedSampleDecoder {
+
+	// smaller shards are not worth a thread
+	static final int MIN_SAMPLES_PER_SHARD = 16;
+
+	static final int BATCH_SIZE = 64;
+
+	// batches a worker can fall behind the reading thread
+	static final int QUEUE_SIZE = 4;
+
+	private static final Batch END = new Batch();
+
+	private final int[] slots;
+	private final Sample[] samples;
+
+	private final int[] firstColumns;
+	private final int[] lastColumns;
+
+	private final ArrayList<BlockingQueue<Batch>> queues = new ArrayList<BlockingQueue<Batch>>();
+	private final ArrayList<Future<Void>> workers = new ArrayList<Future<Void>>();
+	private final ExecutorService executor;
+
+	private Batch batch;
+
+	/**
+	 * @param slots   The sample index of every column or -1 if the column is
+	 *                skipped
+	 * @param samples The samples, created before the first record is added
+	 */
+	ShardedSampleDecoder(int threads, int[] slots, Sample[] samples) {
+
+		this.slots = slots;
+		this.samples = samples;
+
+		ArrayList<Integer> columns = new ArrayList<Integer>();
+		for (int column = 0; column < slots.length; column++) {
+			if (slots[column] != -1) {
+				columns.add(column);
+			}
+		}
+
+		int shards = Math.max(1, Math.min(threads, columns.size()));
+		firstColumns = new int[shards];
+		lastColumns = new int[shards];
+
+		for (int shard = 0; shard < shards; shard++) {
+			firstColumns[shard] = columns.get(shard * columns.size() / shards);
+			lastColumns[shard] = columns.get((shard + 1) * columns.size() / shards - 1);
+		}
+
+		executor = Executors.newFixedThreadPool(shards);
+
+		for (int shard = 0; shard < shards; shard++) {
+			final int index = shard;
+			final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(QUEUE_SIZE);
+			queues.add(queue);
+			workers.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					decode(index, queue);
+					return null;
+				}
+			}));
+		}
+
+		batch = new Batch();
+	}
+
+	/**
+	 * Adds a record, the line is copied.
+	 *
+	 * @param offset  Start of the first sample column
+	 * @param lineEnd End of the line
+	 */
+	void add(Record record, int offset, int lineEnd) throws IOException {
+
+		int lineStart = offset;
+		int[] offsets = new int[firstColumns.length];
+
+		// start of the first column of every shard, relative to the copied line
+		int column = 0;
+		for (int shard = 0; shard < firstColumns.length; shard++) {
+			while (column < firstColumns[shard] && offset <= lineEnd) {
+				offset = FastVcfImporter.indexOf(record.line, offset, lineEnd, (byte) '\t') + 1;
+				column++;
+			}
+			offsets[shard] = offset - lineStart;
+		}
+
+		batch.add(record.copy(lineStart, lineEnd), offsets);
+
+		if (batch.size() == BATCH_SIZE) {
+			publish(batch);
+			batch = new Batch();
+		}
+	}
+
+	/**
+	 * Decodes the remaining records and waits for all workers.
+	 */
+	void finish() throws IOException {
+		try {
+			if (batch.size() > 0) {
+				publish(batch);
+			}
+			publish(END);
+			for (Future<Void> worker : workers) {
+				worker.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Stops the workers after an error of the reading thread.
+	 */
+	void abort() {
+		executor.shutdownNow();
+	}
+
+	private void publish(Batch batch) throws IOException {
+		try {
+			for (BlockingQueue<Batch> queue : queues) {
+				queue.put(batch);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			executor.shutdownNow();
+			throw new IOException(e);
+		}
+	}
+
+	private void decode(int shard, BlockingQueue<Batch> queue) throws Exception {
+
+		Exception failure = null;
+
+		while (true) {
+
+			Batch next = queue.take();
+
+			if (next == END) {
+				break;
+			}
+
+			// keep taking batches after a failure, the reading thread must not block
+			if (failure != null) {
+				continue;
+			}
+
+			try {
+				for (int i = 0; i < next.size(); i++) {
+					Record record = next.records.get(i);
+					FastVcfImporter.decodeColumns(record, next.offsets.get(i)[shard], record.line.length,
+							firstColumns[shard], lastColumns[shard], slots, samples);
+				}
+			} catch (Exception e) {
+				failure = e;
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	static class Batch {
+
+		final ArrayList<Record> records;
+		final ArrayList<int[]> offsets;
+
+		Batch() {
+			records = new ArrayList<Record>(BATCH_SIZE);
+			offsets = new ArrayList<int[]>(BATCH_SIZE);
+		}
+
+		void add(Record record, int[] shardOffsets) {
+			records.add(record);
+			offsets.add(shardOffsets);
+		}
+
+		int size() {
+			return records.size();
+		}
+	}
+
+}
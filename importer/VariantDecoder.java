@@ -0,0 +1,175 @@
+package importer;
+
+import vcf.Sample;
+import vcf.Variant;
+
+/**
+ * Adds the variants of one called genotype to a sample. The rules for HOM_VAR
+ * and HET genotypes (SNPs, deletions, insertions and heteroplasmies) of all
+ * importers, {@link VcfImporter} passes the htsjdk genotypes and the other
+ * importers the decoded alleles.
+ */
+final class VariantDecoder {
+
+	private VariantDecoder() {
+	}
+
+	/**
+	 * Adds a HOM_VAR genotype.
+	 *
+	 * @param allele The bases of the called allele ("*" for a spanning deletion)
+	 */
+	static void addHomozygous(Sample sample, int start, String reference, String allele, boolean hasCoverage,
+			int coverage) {
+
+		if (allele.length() == reference.length()) {
+
+			if (allele.length() == 1) {
+
+				Variant variant = new Variant();
+				variant.setPos(start);
+				variant.setRef(reference.charAt(0));
+
+				if (allele.equals("*")) {
+					variant.setVariantBase('d');
+					variant.setType(4);
+				} else {
+					variant.setVariantBase(allele.charAt(0));
+					variant.setType(1);
+				}
+
+				if (hasCoverage) {
+					variant.setCoverage(coverage);
+				}
+
+				sample.addVariant(variant);
+
+			} else {
+
+				// check for SNPS with complex genotypes (REF: ACA; GENOTYPE-> ACT --> SNP is T)
+				for (int i = 0; i < allele.length(); i++) {
+
+					if (reference.charAt(i) != allele.charAt(i)) {
+
+						Variant variant = new Variant();
+						variant.setPos(start + i);
+						variant.setRef(reference.charAt(0));
+						variant.setVariantBase(allele.charAt(i));
+						variant.setType(1);
+
+						if (hasCoverage) {
+							variant.setCoverage(coverage);
+						}
+						sample.addVariant(variant);
+					}
+				}
+			}
+
+		}
+
+		// DELETIONS
+		else if (reference.length() > allele.length()) {
+
+			int diff = reference.length() - allele.length();
+
+			for (int i = 0; i < diff; i++) {
+				int pos = start + allele.length() + i;
+				Variant variant = new Variant();
+				variant.setPos(pos);
+				variant.setRef(reference.charAt(0));
+				variant.setVariantBase('d');
+				variant.setType(4);
+				sample.addVariant(variant);
+
+				if (hasCoverage) {
+					sample.setCoverage(pos, coverage);
+				}
+			}
+		}
+
+		// INSERTIONS
+		else {
+
+			Variant variant = new Variant();
+			variant.setPos(start);
+			variant.setRef(reference.charAt(0));
+			variant.setType(5);
+
+			if (reference.length() == 1) {
+				variant.setInsertion(start + "." + 1 + allele.substring(reference.length(), allele.length()));
+			} else {
+				// insertions are added "left": from CT to CCCT
+				variant.setInsertion(start + "." + 1 + allele.substring(0, allele.length() - reference.length()));
+			}
+
+			sample.addVariant(variant);
+
+			if (hasCoverage) {
+				sample.setCoverage(start, coverage);
+			}
+		}
+	}
+
+	/**
+	 * Adds a HET genotype with an AF value.
+	 *
+	 * @param allele1 First base of the first allele, 'd' for "*"
+	 * @param allele2 First base of the second allele, 'd' for "*"
+	 */
+	static void addHeteroplasmy(Sample sample, int start, char reference, char allele1, char allele2,
+			double hetFrequency, double hetFrequencySecond, boolean hasCoverage, int coverage) {
+
+		char major;
+		char var;
+		double majorLevel;
+		double minorLevel;
+		char minor;
+
+		// if a reference allele is available its always allele1
+		if (allele1 == reference) {
+			var = allele2;
+			if (hetFrequency >= 0.5) {
+				majorLevel = hetFrequency;
+				minorLevel = hetFrequencySecond;
+				major = allele2;
+				minor = allele1;
+			} else {
+				majorLevel = hetFrequencySecond;
+				minorLevel = hetFrequency;
+				major = allele1;
+				minor = allele2;
+			}
+		} else {
+			// GT 1/2: no ref included
+			var = allele1;
+			majorLevel = hetFrequency;
+			minorLevel = hetFrequencySecond;
+			major = allele1;
+			minor = allele2;
+		}
+
+		Variant variant = new Variant();
+		variant.setPos(start);
+		variant.setRef(reference);
+
+		if (hetFrequency >= 0.95) {
+			// set to homozygous variant
+			variant.setVariantBase(var);
+			variant.setType(1);
+		} else {
+			variant.setVariantBase(var);
+			variant.setLevel(hetFrequency);
+			variant.setMajor(major);
+			variant.setMajorLevel(majorLevel);
+			variant.setMinor(minor);
+			variant.setMinorLevel(minorLevel);
+			variant.setType(2);
+		}
+
+		if (hasCoverage) {
+			variant.setCoverage(coverage);
+		}
+		sample.addVariant(variant);
+	}
+
+}
@@ -1,6 +1,8 @@
 package importer;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -12,37 +14,92 @@ import htsjdk.variant.variantcontext.GenotypeType;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
+import vcf.ChipRange;
 import vcf.Sample;
-import vcf.Variant;
 
 public class VcfImporter {
 
-	public HashMap<String, Sample> load(File file, boolean chip) throws Exception {
+	// threads used to inflate bgzipped files, 0 reads them with VCFFileReader
+	private int decompressionThreads = 0;
 
-		final VCFFileReader vcfReader = new VCFFileReader(file, false);
+	// query only the mitochondrial contig if the file has a tabix, csi or tribble index
+	private boolean useIndex = true;
 
-		VCFHeader vcfHeader = vcfReader.getFileHeader();
+	// tokenize the records with FastVcfImporter instead of creating VariantContexts
+	private boolean fastImport = false;
 
-		HashMap<String, Sample> samples = new HashMap<String, Sample>();
+	// threads used by FastVcfImporter to decode the sample columns
+	private int threads = 1;
 
-		StringBuilder range = new StringBuilder();
+	/**
+	 * @return The sample names of the VCF file in the order of the columns
+	 */
+	public static ArrayList<String> getSampleNames(File file) throws IOException {
+		if (file.getName().endsWith(".bcf")) {
+			return BcfImporter.getSampleNames(file);
+		}
+		VCFFileReader vcfReader = new VCFFileReader(file, false);
+		ArrayList<String> names = vcfReader.getFileHeader().getSampleNamesInOrder();
+		vcfReader.close();
+		return names;
+	}
 
-		if (chip) {
+	public HashMap<String, Sample> load(File file, boolean chip) throws Exception {
+		return load(file, chip, null);
+	}
 
-			for (VariantContext vc : vcfReader) {
+	/**
+	 * Loads only the given sample columns, all other genotypes are skipped. Used
+	 * to import wide VCF files in several passes with bounded memory.
+	 * 
+	 * @param sampleNames The samples to load or null for all samples
+	 */
+	public HashMap<String, Sample> load(File file, boolean chip, List<String> sampleNames) throws Exception {
+
+		if (file.getName().endsWith(".bcf")) {
+			BcfImporter bcfImporter = new BcfImporter();
+			bcfImporter.setDecompressionThreads(decompressionThreads);
+			return bcfImporter.load(file, chip, sampleNames);
+		}
 
-				range.append(vc.getStart() + ";");
+		final Iterable<VariantContext> vcfReader;
+		final Closeable vcfFile;
+		final VCFHeader vcfHeader;
 
-			}
+		IndexedVcfReader indexedReader = useIndex ? IndexedVcfReader.open(file) : null;
 
-			vcfReader.close();
+		if (indexedReader == null && fastImport) {
+			FastVcfImporter fastImporter = new FastVcfImporter();
+			fastImporter.setDecompressionThreads(decompressionThreads);
+			fastImporter.setThreads(threads);
+			return fastImporter.load(file, chip, sampleNames);
+		}
 
+		if (indexedReader != null) {
+			vcfHeader = indexedReader.getFileHeader();
+			vcfReader = indexedReader;
+			vcfFile = indexedReader;
+		} else if (decompressionThreads > 0 && file.getName().endsWith(".gz") && ParallelBgzfInputStream.isBgzfFile(file)) {
+			ParallelVcfReader parallelReader = new ParallelVcfReader(file, decompressionThreads);
+			vcfHeader = parallelReader.getFileHeader();
+			vcfReader = parallelReader;
+			vcfFile = parallelReader;
 		} else {
+			VCFFileReader fileReader = new VCFFileReader(file, false);
+			vcfHeader = fileReader.getFileHeader();
+			vcfReader = fileReader;
+			vcfFile = fileReader;
+		}
 
-			range.append("1-16569");
+		HashMap<String, Sample> samples = new HashMap<String, Sample>();
 
+		if (sampleNames == null) {
+			sampleNames = vcfHeader.getSampleNamesInOrder();
 		}
 
+		// chip arrays: the covered positions are collected in the same pass
+		ChipRange.Builder chipRange = chip ? new ChipRange.Builder() : null;
+
 		for (final VariantContext vc : vcfReader) {
 
 			if (vc.getStart() > 16569) {
@@ -51,16 +108,22 @@ public class VcfImporter {
 						.println("Error! Position " + vc.getStart() + " outside the range. Please double check if VCF includes variants mapped to rCRS only.");
 			}
 
+			if (chip) {
+				chipRange.add(vc.getStart());
+			}
+
 			String reference = vc.getReference().getBaseString();
 
-			for (String sampleVcf : vcfHeader.getSampleNamesInOrder()) {
+			for (String sampleVcf : sampleNames) {
 
 				Sample sample = samples.get(sampleVcf);
 
 				if (sample == null) {
 					sample = new Sample();
 					sample.setId(sampleVcf);
-					sample.setRange(range.toString());
+					if (!chip) {
+						sample.setRange("1-16569");
+					}
 				}
 
 				Genotype genotype = vc.getGenotype(sampleVcf);
@@ -80,112 +143,11 @@ public class VcfImporter {
 
 					}
 
-					String genotypeString = genotype.getGenotypeString(true);
-
-					if (genotypeString.length() == reference.length()) {
-
-						if (genotypeString.length() == 1) {
-
-							char base = genotypeString.charAt(0);
-							Variant variant = new Variant();
-							variant.setPos(vc.getStart());
-							variant.setRef(reference.charAt(0));
-
-							if (genotype.getGenotypeString().equals("*")) {
-								variant.setVariantBase('d');
-								variant.setType(4);
-							} else {
-								variant.setVariantBase(base);
-								variant.setType(1);
-							}
-
-							if (genotype.hasAnyAttribute("DP")) {
-								int coverage = (int) vc.getGenotype(sampleVcf).getAnyAttribute("DP");
-								variant.setCoverage(coverage);
-							}
-
-							sample.addVariant(variant);
-
-						} else {
-
-							// check for SNPS with complex genotypes (REF: ACA; GENOTYPE-> ACT --> SNP is T)
-							for (int i = 0; i < genotypeString.length(); i++) {
-
-								if (reference.charAt(i) != genotypeString.charAt(i)) {
-
-									int pos = vc.getStart() + i;
-									char base = genotypeString.charAt(i);
-									Variant variant = new Variant();
-									variant.setPos(pos);
-									variant.setRef(reference.charAt(0));
-									variant.setVariantBase(base);
-									variant.setType(1);
-
-									if (genotype.hasAnyAttribute("DP")) {
-										int coverage = (int) vc.getGenotype(sampleVcf).getAnyAttribute("DP");
-										variant.setCoverage(coverage);
-									}
-									sample.addVariant(variant);
-								}
-
-							}
-						}
-
-					}
-
-					// DELETIONS
-					else if (reference.length() > genotypeString.length()) {
+					boolean hasCoverage = genotype.hasAnyAttribute("DP");
+					int coverage = hasCoverage ? (int) vc.getGenotype(sampleVcf).getAnyAttribute("DP") : 0;
 
-						int diff = reference.length() - genotypeString.length();
-
-						for (int i = 0; i < diff; i++) {
-							int pos = vc.getStart() + genotypeString.length() + i;
-							Variant variant = new Variant();
-							variant.setPos(pos);
-							variant.setRef(reference.charAt(0));
-							variant.setVariantBase('d');
-							variant.setType(4);
-							sample.addVariant(variant);
-
-							if (genotype.hasAnyAttribute("DP")) {
-								int coverage = (int) vc.getGenotype(sampleVcf).getAnyAttribute("DP");
-								variant.setCoverage(coverage);
-							}
-						}
-					}
-
-					// INSERTIONS
-					// TODO CASE CC to CCC a thing?
-					else if (reference.length() < genotypeString.length()) {
-
-						// reference completely included in genotype string, only new bases at the end
-						Variant variant = new Variant();
-
-						if (reference.length() == 1) {
-							int pos = vc.getStart();
-							variant.setPos(pos);
-							variant.setRef(reference.charAt(0));
-							variant.setType(5);
-							String insertion = pos + "." + 1 + genotypeString.substring(reference.length(), (genotypeString.length()));
-							variant.setInsertion(insertion);
-							sample.addVariant(variant);
-						} else {
-							// insertions are added "left": from CT to CCCT therefore start from 0 of
-							// geno-string and go until geno.length-ref.length
-							int pos = vc.getStart();
-							variant.setPos(pos);
-							variant.setRef(reference.charAt(0));
-							variant.setType(5);
-							String insertion = pos + "." + 1 + genotypeString.substring(0, (genotypeString.length() - reference.length()));
-							variant.setInsertion(insertion);
-							sample.addVariant(variant);
-						}
-
-						if (genotype.hasAnyAttribute("DP")) {
-							int coverage = (int) vc.getGenotype(sampleVcf).getAnyAttribute("DP");
-							variant.setCoverage(coverage);
-						}
-					}
+					VariantDecoder.addHomozygous(sample, vc.getStart(), reference, genotype.getGenotypeString(true),
+							hasCoverage, coverage);
 
 				} else if (genotype.getType() == GenotypeType.HET) {
 
@@ -217,86 +179,13 @@ public class VcfImporter {
 							allele2 = 'd';
 						}
 
-						char major;
-						char var;
-						double majorLevel;
-						double minorLevel;
-						char minor;
-
-						// if a reference allele is available its always allele1!! (that means it does
-						// not matter if 0/1 or 1/0)
-
-						// HP always includes non-reference heteroplasmy level!
-						// Can therefore be smaller OR larger then 0.5!
-						if (allele1 == reference.charAt(0)) {
-							var = allele2;
-							// non-reference frequency greater than 0.5
-							if (hetFrequency >= 0.5) {
-								majorLevel = hetFrequency;
-								minorLevel = hetFrequencySecond;
-								major = allele2;
-								minor = allele1;
-							} else {
-								// non-reference frequency smaller than 0.5
-								majorLevel = hetFrequencySecond;
-								minorLevel = hetFrequency;
-								major = allele1;
-								minor = allele2;
-							}
-						} else {
-							// GT 1/2: no ref included
-							var = allele1;
-							majorLevel = hetFrequency;
-							minorLevel = hetFrequencySecond;
-							major = allele1;
-							minor = allele2;
-						}
+						boolean hasCoverage = genotype.hasAnyAttribute("DP");
+						int coverage = hasCoverage ? (int) vc.getGenotype(sampleVcf).getAnyAttribute("DP") : 0;
 
-						Variant variant = new Variant();
-						int pos = vc.getStart();
-						variant.setPos(pos);
-					    variant.setRef(reference.charAt(0));
-
-                        if(hetFrequency >= 0.95){
-						    variant.setVariantBase(var);
-						    //variant.setLevel(hetFrequency);
-						    //variant.setMajor(major);
-						    //variant.setMajorLevel(majorLevel);
-						    //variant.setMinor(minor);
-						    //variant.setMinorLevel(minorLevel);
-
-                            // set to homozygous variant
-						    variant.setType(1);
-                        }
-                        /*
-                        else if(hetFrequency < 0.05){
-					        variant.setRef(reference.charAt(0));
-						    variant.setVariantBase(var);
-						    //variant.setLevel(hetFrequency);
-						    //variant.setMajor(major);
-						    //variant.setMajorLevel(majorLevel);
-						    //variant.setMinor(minor);
-						    //variant.setMinorLevel(minorLevel);
-
-                            // set to homozygous variant
-						    variant.setType(1);
-                        }
-                        */
-                        else{
-						    variant.setVariantBase(var);
-						    variant.setLevel(hetFrequency);
-						    variant.setMajor(major);
-						    variant.setMajorLevel(majorLevel);
-						    variant.setMinor(minor);
-						    variant.setMinorLevel(minorLevel);
-						    variant.setType(2);
-                        }
-
-						if (genotype.hasAnyAttribute("DP")) {
-							int coverage = (int) vc.getGenotype(sampleVcf).getAnyAttribute("DP");
-							variant.setCoverage(coverage);
-						}
-						sample.addVariant(variant);
+						// HP always includes non-reference heteroplasmy level, it can
+						// therefore be smaller OR larger then 0.5
+						VariantDecoder.addHeteroplasmy(sample, vc.getStart(), reference.charAt(0), allele1, allele2,
+								hetFrequency, hetFrequencySecond, hasCoverage, coverage);
 					}
 				}
 
@@ -305,10 +194,64 @@ public class VcfImporter {
 
 		} // end variants
 
-		vcfReader.close();
+		vcfFile.close();
+
+		if (chip) {
+			ChipRange range = chipRange.build();
+			for (Sample sample : samples.values()) {
+				sample.setRange(range);
+			}
+		}
 
 		return samples;
 
 	}
 
+	public int getDecompressionThreads() {
+		return decompressionThreads;
+	}
+
+	/**
+	 * Bgzipped files are inflated by this amount of threads ahead of the parser.
+	 * 0 (default) reads them with VCFFileReader on the calling thread.
+	 */
+	public void setDecompressionThreads(int decompressionThreads) {
+		this.decompressionThreads = decompressionThreads;
+	}
+
+	public boolean isUseIndex() {
+		return useIndex;
+	}
+
+	/**
+	 * If the file has an index, only records of the mitochondrial contig
+	 * (chrM, MT, ...) are read. Without an index the whole file is read.
+	 */
+	public void setUseIndex(boolean useIndex) {
+		this.useIndex = useIndex;
+	}
+
+	public boolean isFastImport() {
+		return fastImport;
+	}
+
+	/**
+	 * Files without an index are tokenized by {@link FastVcfImporter}. The
+	 * samples are the same, this class stays the reference implementation.
+	 */
+	public void setFastImport(boolean fastImport) {
+		this.fastImport = fastImport;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Sample columns are decoded by this amount of threads (fast import only).
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
 }
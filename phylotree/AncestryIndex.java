@@ -0,0 +1,291 @@
+package phylotree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import core.Haplogroup;
+
+/**
+ * Precomputed ancestry information of a phylotree. Every node gets an integer
+ * id, the tree is stored as an Euler tour together with a sparse table over
+ * the node depths. Common ancestor, distance and super haplogroup queries are
+ * answered in constant time without walking parent pointers or allocating
+ * temporary sets.
+ *
+ * The results are the same as the ones of
+ * {@link Phylotree#getCommonAncestor(Haplogroup, Haplogroup)},
+ * {@link Phylotree#getDistanceBetweenHaplogroups(Haplogroup, Haplogroup)} and
+ * {@link Phylotree#isSuperHaplogroup(Haplogroup, Haplogroup)}.
+ */
+public final class AncestryIndex {
+
+	private static final PhylotreeCache<AncestryIndex> instances = new PhylotreeCache<AncestryIndex>(
+			new PhylotreeCache.Factory<AncestryIndex>() {
+				@Override
+				public AncestryIndex create(Phylotree phylotree) {
+					return new AncestryIndex(phylotree);
+				}
+			});
+
+	private final Phylotree phylotree;
+
+	private final HashMap<Haplogroup, Integer> haplogroupIds = new HashMap<Haplogroup, Integer>();
+	private final IdentityHashMap<PhyloTreeNode, Integer> nodeIds = new IdentityHashMap<PhyloTreeNode, Integer>();
+
+	private final PhyloTreeNode[] nodes;
+	private final int[] depth;
+
+	// ids are in preorder, the subtree of a node ends at end[id]
+	private final int[] parent;
+	private final int[][] children;
+	private final int[] end;
+
+	// first and last position of every node in the euler tour
+	private final int[] first;
+	private final int[] last;
+
+	// sparse[k][i] = node with minimal depth in euler[i .. i + 2^k - 1]
+	private final int[][] sparse;
+
+	private AncestryIndex(Phylotree phylotree) {
+
+		this.phylotree = phylotree;
+
+		ArrayList<PhyloTreeNode> nodeList = new ArrayList<PhyloTreeNode>();
+		collectNodes(phylotree.getPhyloTree(), nodeList);
+
+		int size = nodeList.size();
+		nodes = nodeList.toArray(new PhyloTreeNode[size]);
+		depth = new int[size];
+		first = new int[size];
+		last = new int[size];
+		parent = new int[size];
+		children = new int[size][];
+		end = new int[size];
+
+		for (int id = 0; id < size; id++) {
+			nodeIds.put(nodes[id], id);
+			if (nodes[id].getHaplogroup() != null) {
+				haplogroupIds.put(nodes[id].getHaplogroup(), id);
+			}
+		}
+
+		if (size > 0) {
+			parent[0] = -1;
+		}
+		for (int id = size - 1; id >= 0; id--) {
+			List<PhyloTreeNode> subHaplogroups = nodes[id].getSubHaplogroups();
+			children[id] = new int[subHaplogroups.size()];
+			end[id] = id;
+			for (int i = 0; i < children[id].length; i++) {
+				children[id][i] = nodeIds.get(subHaplogroups.get(i));
+				parent[children[id][i]] = id;
+				end[id] = Math.max(end[id], end[children[id][i]]);
+			}
+		}
+
+		int[] euler = new int[Math.max(1, 2 * size - 1)];
+		buildEulerTour(euler);
+
+		int levels = 32 - Integer.numberOfLeadingZeros(euler.length);
+		sparse = new int[levels][];
+		sparse[0] = euler;
+
+		for (int k = 1; k < levels; k++) {
+			int span = 1 << k;
+			int half = span >> 1;
+			int[] previous = sparse[k - 1];
+			int[] current = new int[euler.length - span + 1];
+			for (int i = 0; i < current.length; i++) {
+				int left = previous[i];
+				int right = previous[i + half];
+				current[i] = depth[left] <= depth[right] ? left : right;
+			}
+			sparse[k] = current;
+		}
+
+	}
+
+	/**
+	 * Returns the index of the given phylotree. The index is built on the first
+	 * call and shared afterwards.
+	 */
+	public static AncestryIndex getInstance(Phylotree phylotree) {
+		return instances.get(phylotree);
+	}
+
+	private void collectNodes(PhyloTreeNode node, ArrayList<PhyloTreeNode> nodeList) {
+		nodeList.add(node);
+		for (PhyloTreeNode child : node.getSubHaplogroups()) {
+			collectNodes(child, nodeList);
+		}
+	}
+
+	private void buildEulerTour(int[] euler) {
+
+		int size = nodes.length;
+
+		if (size == 0) {
+			return;
+		}
+
+		// iterative dfs, keeps deep trees away from the call stack
+		int[] stack = new int[size];
+		int[] nextChild = new int[size];
+		int top = 0;
+		int position = 0;
+
+		stack[0] = 0;
+		depth[0] = 0;
+		first[0] = position;
+		last[0] = position;
+		euler[position++] = 0;
+
+		while (top >= 0) {
+			int id = stack[top];
+			List<PhyloTreeNode> children = nodes[id].getSubHaplogroups();
+
+			if (nextChild[id] < children.size()) {
+				int child = nodeIds.get(children.get(nextChild[id]));
+				nextChild[id]++;
+				depth[child] = depth[id] + 1;
+				stack[++top] = child;
+				first[child] = position;
+				last[child] = position;
+				euler[position++] = child;
+			} else {
+				top--;
+				if (top >= 0) {
+					int parent = stack[top];
+					last[parent] = position;
+					euler[position++] = parent;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The id of the haplogroup or -1 if it is not part of the tree
+	 */
+	public int getId(Haplogroup haplogroup) {
+		if (haplogroup == null) {
+			return -1;
+		}
+		Integer id = haplogroupIds.get(haplogroup);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @return The id of the node or -1 if it is not part of the tree
+	 */
+	public int getId(PhyloTreeNode node) {
+		Integer id = nodeIds.get(node);
+		return id == null ? -1 : id;
+	}
+
+	public PhyloTreeNode getNode(int id) {
+		return nodes[id];
+	}
+
+	public Haplogroup getHaplogroup(int id) {
+		return nodes[id].getHaplogroup();
+	}
+
+	/**
+	 * @return The id of the parent node or -1 for the root, always smaller than
+	 *         the id of the node
+	 */
+	public int getParent(int id) {
+		return parent[id];
+	}
+
+	/**
+	 * @return The ids of the sub haplogroups in tree order, the array must not
+	 *         be modified
+	 */
+	public int[] getChildren(int id) {
+		return children[id];
+	}
+
+	/**
+	 * @return The last id of the subtree of the node, the subtree consists of
+	 *         all ids between the id of the node and this id
+	 */
+	public int getSubtreeEnd(int id) {
+		return end[id];
+	}
+
+	/**
+	 * @return The amount of edges between the node and the root of the tree
+	 */
+	public int getDepth(int id) {
+		return depth[id];
+	}
+
+	public int getCommonAncestor(int id1, int id2) {
+		int left = first[id1];
+		int right = first[id2];
+		if (left > right) {
+			int tmp = left;
+			left = right;
+			right = tmp;
+		}
+		int k = 31 - Integer.numberOfLeadingZeros(right - left + 1);
+		int a = sparse[k][left];
+		int b = sparse[k][right - (1 << k) + 1];
+		return depth[a] <= depth[b] ? a : b;
+	}
+
+	public int getDistance(int id1, int id2) {
+		return depth[id1] + depth[id2] - 2 * depth[getCommonAncestor(id1, id2)];
+	}
+
+	/**
+	 * @return true if superHaplogroup is the node itself or one of its ancestors
+	 */
+	public boolean isSuperHaplogroup(int superHaplogroup, int id) {
+		return first[superHaplogroup] <= first[id] && last[id] <= last[superHaplogroup];
+	}
+
+	public Haplogroup getCommonAncestor(Haplogroup hg1, Haplogroup hg2) {
+		int id1 = getId(hg1);
+		int id2 = getId(hg2);
+		if (id1 == -1 || id2 == -1) {
+			return null;
+		}
+		return getHaplogroup(getCommonAncestor(id1, id2));
+	}
+
+	public int getDistanceBetweenHaplogroups(Haplogroup hg1, Haplogroup hg2) {
+		int id1 = getId(hg1);
+		int id2 = getId(hg2);
+		if (id1 == -1 || id2 == -1) {
+			return phylotree.getDistanceBetweenHaplogroups(hg1, hg2);
+		}
+		return getDistance(id1, id2);
+	}
+
+	/**
+	 * Same as {@link Haplogroup#isSuperHaplogroup(Phylotree, Haplogroup)} called
+	 * on superHaplogroup.
+	 */
+	public boolean isSuperHaplogroup(Haplogroup superHaplogroup, Haplogroup haplogroup) {
+		int superId = getId(superHaplogroup);
+		int id = getId(haplogroup);
+		if (superId == -1 || id == -1) {
+			return false;
+		}
+		return isSuperHaplogroup(superId, id);
+	}
+
+	public Phylotree getPhylotree() {
+		return phylotree;
+	}
+
+	public int getSize() {
+		return nodes.length;
+	}
+
+}
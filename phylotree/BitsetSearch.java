@@ -0,0 +1,405 @@
+package phylotree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import core.Polymorphism;
+import core.Sample;
+import core.SampleRanges;
+import core.TestSample;
+import search.SearchResult;
+import search.ranking.RankingMethod;
+import search.ranking.Rankings;
+import search.ranking.results.RankedResult;
+
+/**
+ * Scores all nodes of a phylotree with bit operations instead of building a
+ * search result per node. Every expected polymorphism of the tree (back
+ * mutations are mapped to their polymorphism) gets a bit. A node stores the
+ * polymorphisms its path expects (back mutations removed) and all
+ * polymorphisms its path ever expected, a sample is turned into the bits of
+ * its found polymorphisms and the bits of its range. The found, expected and
+ * missing weights of a node are the weights of the bits of a word-wise AND,
+ * the expected weights of all nodes in a range are computed once per range.
+ * Recurrent polymorphisms and back mutations without polymorphism on the path
+ * can not be represented by one bit, the few nodes with such paths keep the
+ * counts of these polymorphisms in addition.
+ *
+ * The weights are summed in another order than in
+ * {@link Phylotree#search(TestSample, RankingMethod)}, so all nodes whose score
+ * is close to the top hits are searched again by the {@link StackSearch} and
+ * ranked by the ranking method. The top hits (and the result of the
+ * expected haplogroup) are the same as the ones of the full search. Ranking
+ * methods that keep all results or whose distance is not based on the weights
+ * (Kimura2P) fall back to the full search.
+ */
+public final class BitsetSearch implements PhylotreeSearch {
+
+	private static final PhylotreeCache<BitsetSearch> instances = new PhylotreeCache<BitsetSearch>(
+			new PhylotreeCache.Factory<BitsetSearch>() {
+				@Override
+				public BitsetSearch create(Phylotree phylotree) {
+					return new BitsetSearch(phylotree);
+				}
+			});
+
+	private final AncestryIndex index;
+
+	private final StackSearch stackSearch;
+
+	// the polymorphism of every bit and its weight
+	private final Polymorphism[] polymorphisms;
+	private final double[] weights;
+	private final HashMap<Integer, ArrayList<Integer>> bitsByPosition = new HashMap<Integer, ArrayList<Integer>>();
+	private final int words;
+
+	// polymorphisms expected by the path of every node
+	private final long[][] expected;
+
+	// polymorphisms the path of every node ever expected
+	private final long[][] path;
+
+	// counts the bits can not represent (count - bit), null for most nodes
+	private final int[][] extraBits;
+	private final int[][] extraExpected;
+	private final int[][] extraPath;
+
+	private final Map<SampleRanges, Range> ranges = new HashMap<SampleRanges, Range>();
+
+	private BitsetSearch(Phylotree phylotree) {
+
+		index = AncestryIndex.getInstance(phylotree);
+		stackSearch = StackSearch.getInstance(phylotree);
+
+		HashMap<String, Integer> bits = new HashMap<String, Integer>();
+		ArrayList<Polymorphism> polymorphismList = new ArrayList<Polymorphism>();
+
+		for (int id = 0; id < index.getSize(); id++) {
+			for (Polymorphism polymorphism : index.getNode(id).getExpectedPolys()) {
+				Polymorphism reference = getReference(polymorphism);
+				String name = reference.toString();
+				if (!bits.containsKey(name)) {
+					bits.put(name, polymorphismList.size());
+					polymorphismList.add(reference);
+				}
+			}
+		}
+
+		// bits ordered by position, so the bits of a range share few words
+		Collections.sort(polymorphismList, new Comparator<Polymorphism>() {
+			@Override
+			public int compare(Polymorphism polymorphism1, Polymorphism polymorphism2) {
+				if (polymorphism1.getPosition() != polymorphism2.getPosition()) {
+					return polymorphism1.getPosition() < polymorphism2.getPosition() ? -1 : 1;
+				}
+				return polymorphism1.toString().compareTo(polymorphism2.toString());
+			}
+		});
+		for (int bit = 0; bit < polymorphismList.size(); bit++) {
+			bits.put(polymorphismList.get(bit).toString(), bit);
+		}
+
+		polymorphisms = polymorphismList.toArray(new Polymorphism[polymorphismList.size()]);
+		weights = new double[polymorphisms.length];
+		words = (polymorphisms.length + 63) >>> 6;
+
+		for (int bit = 0; bit < polymorphisms.length; bit++) {
+			weights[bit] = phylotree.getMutationRate(polymorphisms[bit]);
+			ArrayList<Integer> list = bitsByPosition.get(polymorphisms[bit].getPosition());
+			if (list == null) {
+				list = new ArrayList<Integer>();
+				bitsByPosition.put(polymorphisms[bit].getPosition(), list);
+			}
+			list.add(bit);
+		}
+
+		int size = index.getSize();
+		expected = new long[size][];
+		path = new long[size][];
+		extraBits = new int[size][];
+		extraExpected = new int[size][];
+		extraPath = new int[size][];
+
+		encode(0, new long[words], new long[words], new int[polymorphisms.length], new int[polymorphisms.length],
+				new ArrayList<Integer>(), bits);
+	}
+
+	/**
+	 * Returns the search of the given phylotree. It is built on the first call
+	 * and shared afterwards.
+	 */
+	public static BitsetSearch getInstance(Phylotree phylotree) {
+		return instances.get(phylotree);
+	}
+
+	/**
+	 * @return The polymorphism itself or the polymorphism a back mutation
+	 *         reverts, the weights of the search are the ones of this
+	 *         polymorphism
+	 */
+	private Polymorphism getReference(Polymorphism polymorphism) {
+		if (!polymorphism.isBackMutation()) {
+			return polymorphism;
+		}
+		Polymorphism reference = new Polymorphism(polymorphism);
+		reference.setBackMutation(false);
+		return reference;
+	}
+
+	/**
+	 * Encodes the node and its subtree.
+	 *
+	 * @param expectedCounts Polymorphisms expected by the path, reduced by back
+	 *                       mutations
+	 * @param pathCounts     Polymorphisms the path ever expected
+	 * @param irregular      Bits whose counts are not 0 or 1 somewhere on the
+	 *                       path
+	 */
+	private void encode(int id, long[] parentExpected, long[] parentPath, int[] expectedCounts, int[] pathCounts,
+			ArrayList<Integer> irregular, HashMap<String, Integer> bits) {
+
+		long[] nodeExpected = parentExpected.clone();
+		long[] nodePath = parentPath.clone();
+		ArrayList<Polymorphism> polys = index.getNode(id).getExpectedPolys();
+		int irregularSize = irregular.size();
+
+		for (Polymorphism polymorphism : polys) {
+			int bit = bits.get(getReference(polymorphism).toString());
+			if (polymorphism.isBackMutation()) {
+				expectedCounts[bit]--;
+			} else {
+				expectedCounts[bit]++;
+				pathCounts[bit]++;
+			}
+			setBit(nodeExpected, bit, expectedCounts[bit] > 0);
+			setBit(nodePath, bit, pathCounts[bit] > 0);
+			if (expectedCounts[bit] < 0 || expectedCounts[bit] > 1 || pathCounts[bit] > 1) {
+				irregular.add(bit);
+			}
+		}
+
+		expected[id] = nodeExpected;
+		path[id] = nodePath;
+
+		if (!irregular.isEmpty()) {
+			ArrayList<Integer> extras = new ArrayList<Integer>();
+			for (int bit : irregular) {
+				int extraExpectedCount = expectedCounts[bit] - (expectedCounts[bit] > 0 ? 1 : 0);
+				int extraPathCount = pathCounts[bit] - (pathCounts[bit] > 0 ? 1 : 0);
+				if ((extraExpectedCount != 0 || extraPathCount != 0) && !extras.contains(bit)) {
+					extras.add(bit);
+				}
+			}
+			if (!extras.isEmpty()) {
+				extraBits[id] = new int[extras.size()];
+				extraExpected[id] = new int[extras.size()];
+				extraPath[id] = new int[extras.size()];
+				for (int i = 0; i < extras.size(); i++) {
+					int bit = extras.get(i);
+					extraBits[id][i] = bit;
+					extraExpected[id][i] = expectedCounts[bit] - (expectedCounts[bit] > 0 ? 1 : 0);
+					extraPath[id][i] = pathCounts[bit] - (pathCounts[bit] > 0 ? 1 : 0);
+				}
+			}
+		}
+
+		for (int child : index.getChildren(id)) {
+			encode(child, nodeExpected, nodePath, expectedCounts, pathCounts, irregular, bits);
+		}
+
+		for (Polymorphism polymorphism : polys) {
+			int bit = bits.get(getReference(polymorphism).toString());
+			if (polymorphism.isBackMutation()) {
+				expectedCounts[bit]++;
+			} else {
+				expectedCounts[bit]--;
+				pathCounts[bit]--;
+			}
+		}
+		while (irregular.size() > irregularSize) {
+			irregular.remove(irregular.size() - 1);
+		}
+	}
+
+	private static void setBit(long[] bits, int bit, boolean value) {
+		if (value) {
+			bits[bit >>> 6] |= 1L << bit;
+		} else {
+			bits[bit >>> 6] &= ~(1L << bit);
+		}
+	}
+
+	private static boolean getBit(long[] bits, int bit) {
+		return (bits[bit >>> 6] & (1L << bit)) != 0;
+	}
+
+	/**
+	 * @param maskWords The words of the mask that are not 0
+	 * @return The weight of all bits that are set in bits and mask
+	 */
+	private double sum(long[] bits, long[] mask, int[] maskWords) {
+		double sum = 0;
+		for (int word : maskWords) {
+			long value = bits[word] & mask[word];
+			while (value != 0) {
+				sum += weights[(word << 6) + Long.numberOfTrailingZeros(value)];
+				value &= value - 1;
+			}
+		}
+		return sum;
+	}
+
+	private static int[] getWords(long[] bits) {
+		int count = 0;
+		for (long value : bits) {
+			if (value != 0) {
+				count++;
+			}
+		}
+		int[] result = new int[count];
+		count = 0;
+		for (int word = 0; word < bits.length; word++) {
+			if (bits[word] != 0) {
+				result[count++] = word;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return The bits and the weights of all nodes in the range, computed once
+	 *         for all samples with the same range
+	 */
+	private Range getRange(SampleRanges sampleRanges) {
+		synchronized (ranges) {
+			Range range = ranges.get(sampleRanges);
+			if (range == null) {
+				range = new Range(sampleRanges);
+				ranges.put(sampleRanges, range);
+			}
+			return range;
+		}
+	}
+
+	/**
+	 * @return The bits of all polymorphisms in range that are found in the
+	 *         sample
+	 */
+	private long[] getFoundBits(Sample sample, long[] inRange) {
+		long[] bits = new long[words];
+		for (Polymorphism polymorphism : sample.getPolymorphisms()) {
+			ArrayList<Integer> candidates = bitsByPosition.get(polymorphism.getPosition());
+			if (candidates == null) {
+				continue;
+			}
+			for (int bit : candidates) {
+				if (!getBit(bits, bit) && getBit(inRange, bit) && sample.contains(polymorphisms[bit]) > 0) {
+					setBit(bits, bit, true);
+				}
+			}
+		}
+		return bits;
+	}
+
+	@Override
+	public List<RankedResult> search(TestSample sample, RankingMethod rankingMethod) {
+
+		SearchMetric metric = SearchMetric.of(rankingMethod);
+		int maxTopResults = Math.max(1, Rankings.getMaxTopResults(rankingMethod));
+		int size = index.getSize();
+
+		if (metric == null || maxTopResults >= size) {
+			return ExactSearch.search(index, sample, rankingMethod);
+		}
+
+		double sumWeightsSample = new SearchResult(index.getNode(0), sample).getSumWeightsAllPolysSample();
+
+		Range range = getRange(sample.getSample().getSampleRanges());
+		long[] found = getFoundBits(sample.getSample(), range.bits);
+		int[] foundWords = getWords(found);
+
+		StackSearch.Scores scores = new StackSearch.Scores();
+		scores.start(maxTopResults);
+
+		for (int id = 1; id < size; id++) {
+
+			// the path bits contain the expected bits
+			double foundWeight = 0;
+			double pathFoundWeight = 0;
+			for (int word : foundWords) {
+				long value = path[id][word] & found[word];
+				long nodeExpected = expected[id][word];
+				while (value != 0) {
+					long lowest = value & -value;
+					double weight = weights[(word << 6) + Long.numberOfTrailingZeros(value)];
+					pathFoundWeight += weight;
+					if ((nodeExpected & lowest) != 0) {
+						foundWeight += weight;
+					}
+					value ^= lowest;
+				}
+			}
+			double nodeExpectedWeight = range.expectedWeight[id];
+			double nodePathWeight = range.pathWeight[id];
+
+			if (extraBits[id] != null) {
+				for (int i = 0; i < extraBits[id].length; i++) {
+					int bit = extraBits[id][i];
+					if (getBit(found, bit)) {
+						foundWeight += extraExpected[id][i] * weights[bit];
+						pathFoundWeight += extraPath[id][i] * weights[bit];
+					}
+				}
+			}
+
+			double missingWeight = nodePathWeight - pathFoundWeight;
+
+			// a path without expected polymorphisms in range has exactly the weights 0
+			scores.add(id,
+					metric.getScore(sumWeightsSample, foundWeight, nodeExpectedWeight, missingWeight,
+							sumWeightsSample - foundWeight),
+					nodePathWeight == 0 || metric.isStable(sumWeightsSample, nodeExpectedWeight, missingWeight,
+							pathFoundWeight > 0));
+		}
+
+		return stackSearch.rank(sample, rankingMethod, metric, scores);
+	}
+
+	/**
+	 * The polymorphisms of a sample range and the expected weights of all nodes
+	 * in the range.
+	 */
+	private class Range {
+
+		final long[] bits = new long[words];
+		final double[] expectedWeight = new double[index.getSize()];
+		final double[] pathWeight = new double[index.getSize()];
+
+		Range(SampleRanges sampleRanges) {
+
+			for (int bit = 0; bit < polymorphisms.length; bit++) {
+				setBit(bits, bit, sampleRanges.contains(polymorphisms[bit]));
+			}
+			int[] rangeWords = getWords(bits);
+
+			for (int id = 0; id < index.getSize(); id++) {
+				expectedWeight[id] = sum(expected[id], bits, rangeWords);
+				pathWeight[id] = sum(path[id], bits, rangeWords);
+				if (extraBits[id] != null) {
+					for (int i = 0; i < extraBits[id].length; i++) {
+						int bit = extraBits[id][i];
+						if (getBit(bits, bit)) {
+							expectedWeight[id] += extraExpected[id][i] * weights[bit];
+							pathWeight[id] += extraPath[id][i] * weights[bit];
+						}
+					}
+				}
+			}
+		}
+	}
+
+}
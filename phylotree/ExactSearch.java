@@ -0,0 +1,79 @@
+package phylotree;
+
+import java.util.List;
+
+import core.Polymorphism;
+import core.TestSample;
+import search.SearchResult;
+import search.ranking.RankingMethod;
+import search.ranking.TopHitCollector;
+import search.ranking.results.RankedResult;
+
+/**
+ * The search steps of {@link Phylotree#search}, shared by the searches that
+ * only build the search results of some nodes (see {@link StackSearch}) and by
+ * the classification cache that restores single results. A search result
+ * built here has the same weights as the one of the full search, since the
+ * weights are added in the same order. The results of the full search are
+ * ranked by a {@link TopHitCollector} while they are built.
+ */
+public final class ExactSearch {
+
+	private ExactSearch() {
+	}
+
+	/**
+	 * Same as one step of Phylotree.searchPhylotree: the result of the node
+	 * based on the result of its parent. Unlike that step, a polymorphism found
+	 * as a heteroplasmy is marked on a copy, the nodes of the tree are shared by
+	 * all workers and are not changed.
+	 */
+	public static SearchResult search(PhyloTreeNode node, SearchResult parentResult, TestSample sample) {
+
+		SearchResult newResult = new SearchResult(node, parentResult);
+
+		for (Polymorphism currentPoly : node.getExpectedPolys()) {
+			if (sample.getSample().getSampleRanges().contains(currentPoly)) {
+				if (currentPoly.isBackMutation()) {
+					newResult.removeExpectedPolyWeight(currentPoly);
+					newResult.removeFoundPolyWeight(currentPoly, sample.getSample());
+				} else if (newResult.getSample().contains(currentPoly) == 1) {
+					newResult.addExpectedPolyWeight(currentPoly);
+					newResult.addFoundPolyWeight(currentPoly);
+				} else if (newResult.getSample().contains(currentPoly) == 2) {
+					Polymorphism heteroplasmy = new Polymorphism(currentPoly);
+					heteroplasmy.setHeteroplasmy(true);
+					newResult.addExpectedPolyWeight(heteroplasmy);
+					newResult.addFoundPolyWeight(heteroplasmy);
+				} else {
+					newResult.addExpectedPolyWeight(currentPoly);
+				}
+			} else {
+				newResult.addMissingOutOfRangeWeight(currentPoly);
+			}
+		}
+
+		return newResult;
+	}
+
+	/**
+	 * Same as {@link Phylotree#search(TestSample, RankingMethod)}, the results
+	 * are ranked while the tree is searched instead of being collected and
+	 * sorted.
+	 */
+	static List<RankedResult> search(AncestryIndex index, TestSample sample, RankingMethod rankingMethod) {
+		TopHitCollector collector = new TopHitCollector(rankingMethod, sample);
+		searchTree(index, sample, 0, new SearchResult(index.getNode(0), sample), collector);
+		return collector.finish();
+	}
+
+	private static void searchTree(AncestryIndex index, TestSample sample, int id, SearchResult parentResult,
+			TopHitCollector collector) {
+		for (int child : index.getChildren(id)) {
+			SearchResult newResult = search(index.getNode(child), parentResult, sample);
+			collector.add(newResult);
+			searchTree(index, sample, child, newResult, collector);
+		}
+	}
+
+}
@@ -0,0 +1,375 @@
+package phylotree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import core.Polymorphism;
+import core.Sample;
+import core.SampleRanges;
+import core.TestSample;
+import search.SearchResult;
+import search.ranking.RankingMethod;
+import search.ranking.Rankings;
+import search.ranking.results.RankedResult;
+
+/**
+ * Search that only scores the nodes that define a polymorphism of the sample.
+ * The {@link PositionIndex} gives the nodes that expect (or revert) every found
+ * polymorphism, only these touched nodes change the found weight of their
+ * subtree. The touched nodes, their ancestors and the frontier (the untouched
+ * children of these nodes) are scored one by one. All nodes below a frontier
+ * node share its found weights, so the scores of its subtree are bounded in
+ * closed form by the lowest missing and expected weights of the subtree. The
+ * children of a frontier node are only scored if this bound reaches the best
+ * scores so far. The expected weights of all nodes in a range and their minimum
+ * in every subtree are computed once per range. The cost of a sample follows
+ * its touched nodes and the subtrees close to its top hits, not the tree.
+ *
+ * The weights are summed in another order than in
+ * {@link Phylotree#search(TestSample, RankingMethod)}, so all nodes whose score
+ * is close to the top hits are searched again by the {@link StackSearch} and
+ * ranked by the ranking method. The top hits (and the result of the expected
+ * haplogroup) are the same as the ones of the full search. Ranking methods
+ * that keep all results or whose distance is not based on the weights
+ * (Kimura2P) fall back to the full search.
+ */
+public final class IndexedSearch implements PhylotreeBatchSearch {
+
+	private static final PhylotreeCache<IndexedSearch> instances = new PhylotreeCache<IndexedSearch>(
+			new PhylotreeCache.Factory<IndexedSearch>() {
+				@Override
+				public IndexedSearch create(Phylotree phylotree) {
+					return new IndexedSearch(phylotree);
+				}
+			});
+
+	private final AncestryIndex index;
+
+	private final PositionIndex positionIndex;
+
+	private final StackSearch stackSearch;
+
+	private final Map<SampleRanges, Range> ranges = new HashMap<SampleRanges, Range>();
+
+	private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace();
+		}
+	};
+
+	private IndexedSearch(Phylotree phylotree) {
+		index = AncestryIndex.getInstance(phylotree);
+		positionIndex = PositionIndex.getInstance(phylotree);
+		stackSearch = StackSearch.getInstance(phylotree);
+	}
+
+	/**
+	 * Returns the search of the given phylotree. It is built on the first call
+	 * and shared afterwards.
+	 */
+	public static IndexedSearch getInstance(Phylotree phylotree) {
+		return instances.get(phylotree);
+	}
+
+	/**
+	 * @return The expected weights of all nodes in the range, computed once for
+	 *         all samples with the same range
+	 */
+	private Range getRange(SampleRanges sampleRanges) {
+		synchronized (ranges) {
+			Range range = ranges.get(sampleRanges);
+			if (range == null) {
+				range = new Range(sampleRanges);
+				ranges.put(sampleRanges, range);
+			}
+			return range;
+		}
+	}
+
+	/**
+	 * @return The polymorphisms of the tree in range that are found in the
+	 *         sample
+	 */
+	private List<PositionIndex.Entry> getFoundEntries(Sample sample) {
+		ArrayList<PositionIndex.Entry> found = new ArrayList<PositionIndex.Entry>();
+		// all entries of a position are checked at once
+		HashSet<Integer> positions = new HashSet<Integer>();
+		for (Polymorphism polymorphism : sample.getPolymorphisms()) {
+			if (!positions.add(polymorphism.getPosition())) {
+				continue;
+			}
+			for (PositionIndex.Entry entry : positionIndex.getEntries(polymorphism.getPosition())) {
+				if (sample.getSampleRanges().contains(entry.polymorphism) && sample.contains(entry.polymorphism) > 0) {
+					found.add(entry);
+				}
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public List<RankedResult> search(TestSample sample, RankingMethod rankingMethod) {
+
+		SearchMetric metric = SearchMetric.of(rankingMethod);
+		int maxTopResults = Math.max(1, Rankings.getMaxTopResults(rankingMethod));
+
+		if (metric == null || maxTopResults >= index.getSize()) {
+			return ExactSearch.search(index, sample, rankingMethod);
+		}
+
+		return search(sample, rankingMethod, metric, maxTopResults);
+	}
+
+	@Override
+	public List<List<RankedResult>> search(List<TestSample> samples, RankingMethod rankingMethod) {
+
+		SearchMetric metric = SearchMetric.of(rankingMethod);
+		int maxTopResults = Math.max(1, Rankings.getMaxTopResults(rankingMethod));
+		ArrayList<List<RankedResult>> results = new ArrayList<List<RankedResult>>(samples.size());
+
+		for (TestSample sample : samples) {
+			if (metric == null || maxTopResults >= index.getSize()) {
+				results.add(ExactSearch.search(index, sample, rankingMethod.clone()));
+			} else {
+				results.add(search(sample, rankingMethod.clone(), metric, maxTopResults));
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Scores the touched nodes, their ancestors and the frontier, and the
+	 * subtrees of the frontier whose bound can reach the top hits. Ranks the
+	 * nodes that can reach the top hits.
+	 */
+	private List<RankedResult> search(TestSample sample, RankingMethod rankingMethod, SearchMetric metric,
+			int maxTopResults) {
+
+		Range range = getRange(sample.getSample().getSampleRanges());
+		double sumWeightsSample = new SearchResult(index.getNode(0), sample).getSumWeightsAllPolysSample();
+
+		Workspace workspace = workspaces.get();
+		workspace.start(maxTopResults);
+		workspace.touch(0);
+
+		// the weights the touched nodes add to their path
+		for (PositionIndex.Entry entry : getFoundEntries(sample.getSample())) {
+			for (int id : entry.nodes) {
+				workspace.touch(id);
+				workspace.foundWeight[id] += entry.weight;
+				workspace.pathFoundWeight[id] += entry.weight;
+			}
+			for (int id : entry.backMutations) {
+				workspace.touch(id);
+				workspace.foundWeight[id] -= entry.weight;
+			}
+		}
+
+		// parents have smaller ids than their children
+		int[] touched = workspace.getTouched();
+		double[] foundWeight = workspace.foundWeight;
+		double[] pathFoundWeight = workspace.pathFoundWeight;
+		StackSearch.Scores scores = workspace.scores;
+
+		foundWeight[0] = 0;
+		pathFoundWeight[0] = 0;
+		for (int id : touched) {
+			if (id == 0) {
+				continue;
+			}
+			int parent = index.getParent(id);
+			foundWeight[id] += foundWeight[parent];
+			pathFoundWeight[id] += pathFoundWeight[parent];
+			scores.add(id, getScore(metric, range, id, sumWeightsSample, foundWeight[id], pathFoundWeight[id]),
+					isStable(metric, range, id, sumWeightsSample, pathFoundWeight[id]));
+		}
+
+		// the untouched children of the touched nodes are the frontier, all nodes
+		// below a frontier node have its found weights
+		for (int parent : touched) {
+			for (int id : index.getChildren(parent)) {
+				if (!workspace.isTouched(id)) {
+					foundWeight[id] = foundWeight[parent];
+					pathFoundWeight[id] = pathFoundWeight[parent];
+					scores.add(id, getScore(metric, range, id, sumWeightsSample, foundWeight[id], pathFoundWeight[id]),
+							isStable(metric, range, id, sumWeightsSample, pathFoundWeight[id]));
+					workspace.push(id);
+				}
+			}
+		}
+
+		// the children of a frontier node are only scored if the bound of its
+		// subtree can reach the top hits, the threshold only grows
+		while (workspace.hasNext()) {
+			int parent = workspace.pop();
+			double missingWeight = range.pathWeight[parent] - pathFoundWeight[parent];
+			double bound = metric.getSubtreeBound(sumWeightsSample, foundWeight[parent], missingWeight,
+					range.minExpectedWeight[parent], pathFoundWeight[parent] > 0);
+			double score = getScore(metric, range, parent, sumWeightsSample, foundWeight[parent],
+					pathFoundWeight[parent]);
+			if (Math.max(score, bound) < scores.getThreshold()) {
+				continue;
+			}
+			for (int id : index.getChildren(parent)) {
+				foundWeight[id] = foundWeight[parent];
+				pathFoundWeight[id] = pathFoundWeight[parent];
+				scores.add(id, getScore(metric, range, id, sumWeightsSample, foundWeight[id], pathFoundWeight[id]),
+						isStable(metric, range, id, sumWeightsSample, pathFoundWeight[id]));
+				workspace.push(id);
+			}
+		}
+
+		List<RankedResult> results = stackSearch.rank(sample, rankingMethod, metric, scores);
+		workspace.finish();
+		return results;
+	}
+
+	private static double getScore(SearchMetric metric, Range range, int id, double sumWeightsSample,
+			double foundWeight, double pathFoundWeight) {
+		return metric.getScore(sumWeightsSample, foundWeight, range.expectedWeight[id],
+				range.pathWeight[id] - pathFoundWeight, sumWeightsSample - foundWeight);
+	}
+
+	private static boolean isStable(SearchMetric metric, Range range, int id, double sumWeightsSample,
+			double pathFoundWeight) {
+		// a path without expected polymorphisms in range has exactly the weights 0
+		return range.pathWeight[id] == 0 || metric.isStable(sumWeightsSample, range.expectedWeight[id],
+				range.pathWeight[id] - pathFoundWeight, pathFoundWeight > 0);
+	}
+
+	/**
+	 * Turns the weights the nodes add to their path into the weights of the
+	 * paths. Parents have smaller ids than their children.
+	 */
+	private void accumulate(double[] weights) {
+		// the search starts with the empty result of the root
+		weights[0] = 0;
+		for (int id = 1; id < index.getSize(); id++) {
+			weights[id] += weights[index.getParent(id)];
+		}
+	}
+
+	/**
+	 * The arrays of one thread, only the entries of the scored nodes are valid.
+	 */
+	private class Workspace {
+
+		final double[] foundWeight = new double[index.getSize()];
+		final double[] pathFoundWeight = new double[index.getSize()];
+
+		final StackSearch.Scores scores = new StackSearch.Scores();
+
+		// a node is touched if touched equals the current search
+		final int[] touched = new int[index.getSize()];
+		int[] ids = new int[16];
+		int size = 0;
+		int search = 0;
+
+		// the frontier nodes whose subtree is not checked yet
+		int[] frontier = new int[16];
+		int frontierSize = 0;
+
+		void start(int maxTopResults) {
+			if (++search == 0) {
+				Arrays.fill(touched, 0);
+				search = 1;
+			}
+			scores.start(maxTopResults);
+		}
+
+		/**
+		 * Touches the node and its ancestors, their weights start with 0.
+		 */
+		void touch(int id) {
+			for (int node = id; node >= 0 && touched[node] != search; node = index.getParent(node)) {
+				touched[node] = search;
+				foundWeight[node] = 0;
+				pathFoundWeight[node] = 0;
+				if (size == ids.length) {
+					ids = Arrays.copyOf(ids, size * 2);
+				}
+				ids[size++] = node;
+			}
+		}
+
+		boolean isTouched(int id) {
+			return touched[id] == search;
+		}
+
+		/**
+		 * @return The ids of the touched nodes in ascending order
+		 */
+		int[] getTouched() {
+			int[] sorted = Arrays.copyOf(ids, size);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+
+		void push(int id) {
+			if (frontierSize == frontier.length) {
+				frontier = Arrays.copyOf(frontier, frontierSize * 2);
+			}
+			frontier[frontierSize++] = id;
+		}
+
+		boolean hasNext() {
+			return frontierSize > 0;
+		}
+
+		int pop() {
+			return frontier[--frontierSize];
+		}
+
+		void finish() {
+			size = 0;
+		}
+	}
+
+	/**
+	 * The expected weights of all nodes in a sample range.
+	 */
+	private class Range {
+
+		// weight of the expected polymorphisms and of all polymorphisms the path
+		// ever expected
+		final double[] expectedWeight = new double[index.getSize()];
+		final double[] pathWeight = new double[index.getSize()];
+
+		// lowest expected weight in the subtree of the nodes with expected
+		// polymorphisms in range on their path
+		final double[] minExpectedWeight = new double[index.getSize()];
+
+		Range(SampleRanges sampleRanges) {
+			for (PositionIndex.Entry entry : positionIndex.getEntries()) {
+				if (!sampleRanges.contains(entry.polymorphism)) {
+					continue;
+				}
+				for (int id : entry.nodes) {
+					expectedWeight[id] += entry.weight;
+					pathWeight[id] += entry.weight;
+				}
+				for (int id : entry.backMutations) {
+					expectedWeight[id] -= entry.weight;
+				}
+			}
+			accumulate(expectedWeight);
+			accumulate(pathWeight);
+
+			for (int id = 0; id < index.getSize(); id++) {
+				minExpectedWeight[id] = pathWeight[id] == 0 ? Double.POSITIVE_INFINITY : expectedWeight[id];
+			}
+			// children are completed before their parent
+			for (int id = index.getSize() - 1; id > 0; id--) {
+				int parent = index.getParent(id);
+				minExpectedWeight[parent] = Math.min(minExpectedWeight[parent], minExpectedWeight[id]);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+package phylotree;
+
+import java.util.List;
+
+import core.TestSample;
+import search.ranking.RankingMethod;
+import search.ranking.results.RankedResult;
+
+/**
+ * A search that classifies a block of test samples in one call and shares
+ * the work that does not depend on a single sample. Every sample gets the same
+ * ranked results as a search of the sample on its own.
+ */
+public interface PhylotreeBatchSearch extends PhylotreeSearch {
+
+	/**
+	 * @param samples       The samples to classify
+	 * @param rankingMethod The ranking method, every sample is ranked by its own
+	 *                      clone
+	 * @return The ranked results of every sample (best result first), in the
+	 *         order of the samples
+	 */
+	public List<List<RankedResult>> search(List<TestSample> samples, RankingMethod rankingMethod);
+
+}
@@ -0,0 +1,45 @@
+package phylotree;
+
+import java.util.HashMap;
+
+/**
+ * Objects that are derived from a phylotree (indices, searches), built on the
+ * first request and shared afterwards. This is a plain per-tree cache without
+ * eviction: trees are loaded once by the {@link PhylotreeManager} and kept for
+ * the whole run, so their derived objects are kept as well.
+ *
+ * @param <T> The type of the derived objects
+ */
+public final class PhylotreeCache<T> {
+
+	/**
+	 * Builds the object of a phylotree.
+	 */
+	public interface Factory<T> {
+
+		public T create(Phylotree phylotree);
+
+	}
+
+	private final HashMap<Phylotree, T> instances = new HashMap<Phylotree, T>();
+
+	private final Factory<T> factory;
+
+	public PhylotreeCache(Factory<T> factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Returns the object of the given phylotree. It is built on the first call
+	 * and shared afterwards.
+	 */
+	public synchronized T get(Phylotree phylotree) {
+		T instance = instances.get(phylotree);
+		if (instance == null) {
+			instance = factory.create(phylotree);
+			instances.put(phylotree, instance);
+		}
+		return instance;
+	}
+
+}
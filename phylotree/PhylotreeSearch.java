@@ -0,0 +1,23 @@
+package phylotree;
+
+import java.util.List;
+
+import core.TestSample;
+import search.ranking.RankingMethod;
+import search.ranking.results.RankedResult;
+
+/**
+ * A search of test samples on a phylotree. Implementations return the same
+ * ranked results as {@link Phylotree#search(TestSample, RankingMethod)}.
+ */
+public interface PhylotreeSearch {
+
+	/**
+	 * @param sample        The sample to classify
+	 * @param rankingMethod The ranking method, it keeps the results of this
+	 *                      search
+	 * @return The ranked results, best result first
+	 */
+	public List<RankedResult> search(TestSample sample, RankingMethod rankingMethod);
+
+}
@@ -0,0 +1,166 @@
+package phylotree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import core.Polymorphism;
+
+/**
+ * Inverted index of a phylotree: the nodes that expect a polymorphism or
+ * revert it by a back mutation, looked up by the position of the polymorphism.
+ * Node ids are the ones of {@link AncestryIndex}, so the nodes of a
+ * polymorphism are in preorder.
+ */
+public final class PositionIndex {
+
+	private static final PhylotreeCache<PositionIndex> instances = new PhylotreeCache<PositionIndex>(
+			new PhylotreeCache.Factory<PositionIndex>() {
+				@Override
+				public PositionIndex create(Phylotree phylotree) {
+					return new PositionIndex(phylotree);
+				}
+			});
+
+	private final AncestryIndex index;
+
+	private final HashMap<Integer, ArrayList<Entry>> entriesByPosition = new HashMap<Integer, ArrayList<Entry>>();
+
+	private final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+	// entry ids of the expected polymorphisms of every node in tree order, ~id
+	// for back mutations
+	private final int[][] nodeEntries;
+
+	private PositionIndex(Phylotree phylotree) {
+
+		index = AncestryIndex.getInstance(phylotree);
+
+		HashMap<String, Entry> entriesByName = new HashMap<String, Entry>();
+		nodeEntries = new int[index.getSize()][];
+
+		for (int id = 0; id < index.getSize(); id++) {
+			ArrayList<Polymorphism> polymorphisms = index.getNode(id).getExpectedPolys();
+			nodeEntries[id] = new int[polymorphisms.size()];
+			for (int i = 0; i < polymorphisms.size(); i++) {
+				Polymorphism polymorphism = polymorphisms.get(i);
+
+				Polymorphism reference = polymorphism;
+				if (polymorphism.isBackMutation()) {
+					reference = new Polymorphism(polymorphism);
+					reference.setBackMutation(false);
+				}
+
+				String name = reference.toString();
+				Entry entry = entriesByName.get(name);
+				if (entry == null) {
+					entry = new Entry(entries.size(), reference, phylotree.getMutationRate(reference));
+					entriesByName.put(name, entry);
+					entries.add(entry);
+					ArrayList<Entry> list = entriesByPosition.get(reference.getPosition());
+					if (list == null) {
+						list = new ArrayList<Entry>();
+						entriesByPosition.put(reference.getPosition(), list);
+					}
+					list.add(entry);
+				}
+
+				if (polymorphism.isBackMutation()) {
+					entry.backMutations = add(entry.backMutations, id);
+					nodeEntries[id][i] = ~entry.id;
+				} else {
+					entry.nodes = add(entry.nodes, id);
+					nodeEntries[id][i] = entry.id;
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Returns the index of the given phylotree. The index is built on the first
+	 * call and shared afterwards.
+	 */
+	public static PositionIndex getInstance(Phylotree phylotree) {
+		return instances.get(phylotree);
+	}
+
+	private static int[] add(int[] ids, int id) {
+		int[] result = Arrays.copyOf(ids, ids.length + 1);
+		result[ids.length] = id;
+		return result;
+	}
+
+	/**
+	 * @return The nodes that expect the polymorphism (not as back mutation) in
+	 *         tree order
+	 */
+	public List<PhyloTreeNode> getNodes(Polymorphism polymorphism) {
+		ArrayList<PhyloTreeNode> nodes = new ArrayList<PhyloTreeNode>();
+		for (Entry entry : getEntries(polymorphism.getPosition())) {
+			if (entry.polymorphism.equals(polymorphism)) {
+				for (int id : entry.nodes) {
+					nodes.add(index.getNode(id));
+				}
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * @return The entries of all polymorphisms at the position, the list must
+	 *         not be modified
+	 */
+	List<Entry> getEntries(int position) {
+		ArrayList<Entry> list = entriesByPosition.get(position);
+		if (list == null) {
+			return Collections.emptyList();
+		}
+		return list;
+	}
+
+	/**
+	 * @return The entries of all polymorphisms of the tree by id, the list must
+	 *         not be modified
+	 */
+	List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return The entry ids of the expected polymorphisms of the node in the
+	 *         order of {@link PhyloTreeNode#getExpectedPolys()}, ~id for back
+	 *         mutations. The array must not be modified.
+	 */
+	int[] getNodeEntries(int id) {
+		return nodeEntries[id];
+	}
+
+	/**
+	 * One polymorphism (without back mutation flag) and its nodes.
+	 */
+	static final class Entry {
+
+		final int id;
+
+		final Polymorphism polymorphism;
+
+		// weight of the polymorphism and of its back mutations
+		final double weight;
+
+		// nodes that expect the polymorphism, a node is listed once per occurrence
+		int[] nodes = new int[0];
+
+		// nodes with a back mutation of the polymorphism
+		int[] backMutations = new int[0];
+
+		Entry(int id, Polymorphism polymorphism, double weight) {
+			this.id = id;
+			this.polymorphism = polymorphism;
+			this.weight = weight;
+		}
+	}
+
+}
@@ -0,0 +1,213 @@
+package phylotree;
+
+import search.ranking.HammingRanking;
+import search.ranking.JaccardRanking;
+import search.ranking.KulczynskiRanking;
+import search.ranking.RankingMethod;
+import search.ranking.results.RankedResult;
+
+/**
+ * The ranking methods whose distance only depends on the weights of a search
+ * result. Scores are the distances turned into "higher is better", so the
+ * searches can handle all methods the same way.
+ */
+enum SearchMetric {
+
+	KULCZYNSKI {
+		@Override
+		double getScore(double sumWeightsSample, double foundWeight, double expectedWeight, double missingWeight,
+				double remainingWeight) {
+			double sampleRatio = foundWeight / sumWeightsSample;
+			double haplogroupRatio = expectedWeight != 0 ? foundWeight / expectedWeight : 1;
+			if (sampleRatio > 0 && haplogroupRatio > 0) {
+				return sampleRatio * 0.5 + haplogroupRatio * 0.5;
+			} else if (sampleRatio > 0) {
+				return sampleRatio * 0.5;
+			} else if (haplogroupRatio > 0) {
+				return haplogroupRatio * 0.5;
+			}
+			return 0;
+		}
+
+		@Override
+		boolean isStable(double sumWeightsSample, double expectedWeight, double missingWeight, boolean found) {
+			return Math.abs(expectedWeight) >= EPSILON && (sumWeightsSample >= EPSILON || !found);
+		}
+
+		@Override
+		double getBound(double sumWeightsSample, double foundWeight, double missingWeight, double unfoundWeight,
+				boolean balanced) {
+			// found <= expected holds on balanced paths only
+			if (!balanced || sumWeightsSample <= 0) {
+				return Double.POSITIVE_INFINITY;
+			}
+			foundWeight = Math.max(foundWeight, 0);
+			double haplogroupRatio = 1;
+			if (unfoundWeight > 0) {
+				haplogroupRatio = foundWeight / (foundWeight + unfoundWeight);
+			}
+			return 0.5 * foundWeight / sumWeightsSample + 0.5 * haplogroupRatio;
+		}
+
+		@Override
+		double getSubtreeBound(double sumWeightsSample, double foundWeight, double missingWeight,
+				double minExpectedWeight, boolean found) {
+			if (minExpectedWeight == Double.POSITIVE_INFINITY) {
+				return Double.NEGATIVE_INFINITY;
+			}
+			if (minExpectedWeight < EPSILON || (sumWeightsSample < EPSILON && found)) {
+				return Double.POSITIVE_INFINITY;
+			}
+			// the haplogroup ratio is highest at the lowest expected weight
+			return getScore(sumWeightsSample, foundWeight, minExpectedWeight, missingWeight,
+					sumWeightsSample - foundWeight);
+		}
+	},
+
+	HAMMING {
+		@Override
+		double getScore(double sumWeightsSample, double foundWeight, double expectedWeight, double missingWeight,
+				double remainingWeight) {
+			return -((remainingWeight > 0 ? remainingWeight : 0) + missingWeight);
+		}
+
+		@Override
+		boolean isStable(double sumWeightsSample, double expectedWeight, double missingWeight, boolean found) {
+			return true;
+		}
+
+		@Override
+		double getScore(RankedResult result) {
+			return -result.getDistance();
+		}
+
+		@Override
+		double getBound(double sumWeightsSample, double foundWeight, double missingWeight, double unfoundWeight,
+				boolean balanced) {
+			return -(Math.max(sumWeightsSample - foundWeight, 0) + missingWeight);
+		}
+
+		@Override
+		double getSubtreeBound(double sumWeightsSample, double foundWeight, double missingWeight,
+				double minExpectedWeight, boolean found) {
+			return getScore(sumWeightsSample, foundWeight, minExpectedWeight, missingWeight,
+					sumWeightsSample - foundWeight);
+		}
+	},
+
+	JACCARD {
+		@Override
+		double getScore(double sumWeightsSample, double foundWeight, double expectedWeight, double missingWeight,
+				double remainingWeight) {
+			double allWeight = missingWeight + sumWeightsSample;
+			if (foundWeight > 0 && allWeight > 0) {
+				return foundWeight / allWeight;
+			}
+			return 0;
+		}
+
+		@Override
+		boolean isStable(double sumWeightsSample, double expectedWeight, double missingWeight, boolean found) {
+			return Math.abs(missingWeight + sumWeightsSample) >= EPSILON;
+		}
+
+		@Override
+		double getBound(double sumWeightsSample, double foundWeight, double missingWeight, double unfoundWeight,
+				boolean balanced) {
+			double allWeight = missingWeight + sumWeightsSample;
+			if (allWeight <= 0) {
+				return Double.POSITIVE_INFINITY;
+			}
+			return foundWeight > 0 ? foundWeight / allWeight : 0;
+		}
+
+		@Override
+		double getSubtreeBound(double sumWeightsSample, double foundWeight, double missingWeight,
+				double minExpectedWeight, boolean found) {
+			if (missingWeight + sumWeightsSample < EPSILON) {
+				return Double.POSITIVE_INFINITY;
+			}
+			return getScore(sumWeightsSample, foundWeight, minExpectedWeight, missingWeight,
+					sumWeightsSample - foundWeight);
+		}
+	};
+
+	// tolerance for the rounding errors of weights that are summed in another order
+	static final double EPSILON = 1e-9;
+
+	/**
+	 * @return The metric of the ranking method or null if its distance needs
+	 *         more than the weights (e.g. Kimura2P)
+	 */
+	static SearchMetric of(RankingMethod rankingMethod) {
+		if (rankingMethod instanceof KulczynskiRanking) {
+			return KULCZYNSKI;
+		}
+		if (rankingMethod instanceof HammingRanking) {
+			return HAMMING;
+		}
+		if (rankingMethod instanceof JaccardRanking) {
+			return JACCARD;
+		}
+		return null;
+	}
+
+	/**
+	 * @return The distance of the ranked result as a score
+	 */
+	double getScore(RankedResult result) {
+		return result.getDistance();
+	}
+
+	/**
+	 * The distance of the ranked result (see {@link RankedResult#getDistance()})
+	 * as a score, computed from the weights of its search result. The same
+	 * operations on the same weights give the same score. Weights that are
+	 * summed in another order than in the search differ by rounding errors
+	 * only, and so does the score as long as the weights are stable.
+	 *
+	 * @param remainingWeight The weight of the sample polymorphisms that are not
+	 *                        found, the sample weight minus the found weight
+	 */
+	abstract double getScore(double sumWeightsSample, double foundWeight, double expectedWeight, double missingWeight,
+			double remainingWeight);
+
+	/**
+	 * @param found true if a found polymorphism is expected on the path
+	 * @return false if a rounding error of the weights can change the score by
+	 *         more than a rounding error (a divisor close to 0)
+	 */
+	abstract boolean isStable(double sumWeightsSample, double expectedWeight, double missingWeight, boolean found);
+
+	/**
+	 * Upper bound of the score of all nodes below a node.
+	 *
+	 * @param sumWeightsSample The weight of all sample polymorphisms in range
+	 * @param foundWeight      Upper bound of the found weight below the node
+	 * @param missingWeight    The missing weight of the node, it never decreases
+	 *                         along a path
+	 * @param unfoundWeight    Lower bound of the expected weight that is not found
+	 *                         below the node
+	 * @param balanced         true if every back mutation below the node follows
+	 *                         its polymorphism on the path
+	 */
+	abstract double getBound(double sumWeightsSample, double foundWeight, double missingWeight, double unfoundWeight,
+			boolean balanced);
+
+	/**
+	 * Upper bound of the scores in a subtree whose nodes all share the found
+	 * weight of its root, e.g. a subtree without a node that expects a found
+	 * polymorphism. Nodes without expected polymorphisms in range on their path
+	 * are left out, their score is the one of the root.
+	 *
+	 * @param missingWeight     The missing weight of the root, it never
+	 *                          decreases along a path
+	 * @param minExpectedWeight The lowest expected weight of the other nodes, or
+	 *                          infinity if there are none
+	 * @param found             true if a found polymorphism is expected on the
+	 *                          path of the root
+	 */
+	abstract double getSubtreeBound(double sumWeightsSample, double foundWeight, double missingWeight,
+			double minExpectedWeight, boolean found);
+
+}
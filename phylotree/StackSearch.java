@@ -0,0 +1,404 @@
+package phylotree;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import core.Polymorphism;
+import core.Sample;
+import core.SampleRanges;
+import core.TestSample;
+import search.SearchResult;
+import search.ranking.RankingMethod;
+import search.ranking.TopHitCollector;
+import search.ranking.results.RankedResult;
+
+/**
+ * The exact search of the candidate nodes of an approximated search (see
+ * {@link IndexedSearch}). Only the paths to the candidates are walked, the
+ * weights of the current path are kept on a stack of primitive arrays indexed
+ * by the depth. A node adds the weights of its polymorphisms to the ones of its
+ * parent with the same operations in the same order as
+ * {@link Phylotree#search(TestSample, RankingMethod)}, so the weights and the
+ * score of every node are the same as the ones of its search result.
+ *
+ * A search result is only built for the candidates whose score can still
+ * reach the top hits of the {@link TopHitCollector} (and for the node of the
+ * expected haplogroup). It starts from the deepest search result already built
+ * on the path, the steps of {@link ExactSearch} build the others. Subtrees
+ * whose {@link SubtreeBounds bound} is below the lowest top hit are skipped
+ * with all their candidates, unless they contain the expected haplogroup. The
+ * arrays of the walk are kept per thread.
+ */
+final class StackSearch {
+
+	private static final PhylotreeCache<StackSearch> instances = new PhylotreeCache<StackSearch>(
+			new PhylotreeCache.Factory<StackSearch>() {
+				@Override
+				public StackSearch create(Phylotree phylotree) {
+					return new StackSearch(phylotree);
+				}
+			});
+
+	private final AncestryIndex index;
+
+	private final PositionIndex positionIndex;
+
+	private final SubtreeBounds bounds;
+
+	// weight of every entry of the position index
+	private final double[] weights;
+
+	private final int maxDepth;
+
+	// entries of the position index in every range
+	private final Map<SampleRanges, boolean[]> ranges = new HashMap<SampleRanges, boolean[]>();
+
+	private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace();
+		}
+	};
+
+	private StackSearch(Phylotree phylotree) {
+
+		index = AncestryIndex.getInstance(phylotree);
+		positionIndex = PositionIndex.getInstance(phylotree);
+		bounds = SubtreeBounds.getInstance(phylotree);
+
+		List<PositionIndex.Entry> entries = positionIndex.getEntries();
+		weights = new double[entries.size()];
+		for (PositionIndex.Entry entry : entries) {
+			weights[entry.id] = entry.weight;
+		}
+
+		int depth = 0;
+		for (int id = 0; id < index.getSize(); id++) {
+			depth = Math.max(depth, index.getDepth(id));
+		}
+		maxDepth = depth;
+	}
+
+	/**
+	 * Returns the search of the given phylotree. It is built on the first call
+	 * and shared afterwards.
+	 */
+	static StackSearch getInstance(Phylotree phylotree) {
+		return instances.get(phylotree);
+	}
+
+	/**
+	 * @return true for all entries in the range, computed once for all samples
+	 *         with the same range
+	 */
+	private boolean[] getRange(SampleRanges sampleRanges) {
+		synchronized (ranges) {
+			boolean[] inRange = ranges.get(sampleRanges);
+			if (inRange == null) {
+				inRange = new boolean[weights.length];
+				for (PositionIndex.Entry entry : positionIndex.getEntries()) {
+					inRange[entry.id] = sampleRanges.contains(entry.polymorphism);
+				}
+				ranges.put(sampleRanges, inRange);
+			}
+			return inRange;
+		}
+	}
+
+	/**
+	 * Ranks the nodes whose approximated score can reach the top hits. All nodes
+	 * with a score close to the score of the top hits, all nodes with an
+	 * unstable score and the node of the expected haplogroup are searched again
+	 * and handed to the ranking method.
+	 *
+	 * @param scores The approximated scores of the nodes, all other nodes are
+	 *               below the top hits
+	 */
+	List<RankedResult> rank(TestSample sample, RankingMethod rankingMethod, SearchMetric metric, Scores scores) {
+
+		double threshold = scores.getThreshold();
+		int expectedId = index.getId(sample.getExpectedHaplogroup());
+
+		int count = 0;
+		int[] candidates = new int[scores.size + 1];
+		for (int i = 0; i < scores.size; i++) {
+			if (!scores.stable[i] || scores.scores[i] >= threshold) {
+				candidates[count++] = scores.ids[i];
+			}
+		}
+		if (expectedId > 0) {
+			candidates[count++] = expectedId;
+		}
+
+		Arrays.sort(candidates, 0, count);
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique == 0 || candidates[i] != candidates[unique - 1]) {
+				candidates[unique++] = candidates[i];
+			}
+		}
+
+		return search(sample, rankingMethod, metric, Arrays.copyOf(candidates, unique));
+	}
+
+	/**
+	 * Ranks the search results of the given nodes. Only the paths to these nodes
+	 * are walked, each path node once.
+	 *
+	 * @param ids The ids of the nodes in ascending order, without the root
+	 */
+	List<RankedResult> search(TestSample sample, RankingMethod rankingMethod, SearchMetric metric, int[] ids) {
+
+		TopHitCollector collector = new TopHitCollector(rankingMethod, sample);
+		Sample polymorphisms = sample.getSample();
+		boolean[] inRange = getRange(polymorphisms.getSampleRanges());
+		int expectedId = index.getId(sample.getExpectedHaplogroup());
+		SubtreeBounds.Occurrences[] foundOccurrences = bounds.getFoundOccurrences(sample);
+
+		Workspace workspace = workspaces.get();
+		workspace.start(polymorphisms);
+
+		double[] found = workspace.found;
+		double[] expected = workspace.expected;
+		double[] missing = workspace.missing;
+		double[] remaining = workspace.remaining;
+		int[] nodes = workspace.nodes;
+		int[] nextChild = workspace.nextChild;
+		SearchResult[] results = workspace.results;
+
+		SearchResult rootResult = new SearchResult(index.getNode(0), sample);
+		double sumWeightsSample = rootResult.getSumWeightsAllPolysSample();
+
+		found[0] = rootResult.getWeightFoundPolys();
+		expected[0] = rootResult.getExpectedWeightPolys();
+		missing[0] = rootResult.getSumMissingPhyloWeight();
+		remaining[0] = rootResult.getWeightRemainingPolys();
+		nodes[0] = 0;
+		nextChild[0] = 0;
+		results[0] = rootResult;
+		int depth = 0;
+
+		while (depth >= 0) {
+
+			int[] children = index.getChildren(nodes[depth]);
+			if (nextChild[depth] == children.length) {
+				depth--;
+				continue;
+			}
+
+			int child = children[nextChild[depth]++];
+			int end = index.getSubtreeEnd(child);
+			int next = getNext(ids, child);
+			if (next == ids.length || ids[next] > end) {
+				continue;
+			}
+
+			double foundWeight = found[depth];
+			double expectedWeight = expected[depth];
+			double missingWeight = missing[depth];
+			double remainingWeight = remaining[depth];
+
+			// same steps as Phylotree.searchPhylotree, out of range weights are not
+			// part of the score
+			for (int code : positionIndex.getNodeEntries(child)) {
+				int entry = code >= 0 ? code : ~code;
+				if (!inRange[entry]) {
+					continue;
+				}
+				double weight = weights[entry];
+				int contains = workspace.contains(entry);
+				if (code < 0) {
+					expectedWeight -= weight;
+					if (contains > 0) {
+						foundWeight -= weight;
+						remainingWeight += weight;
+					}
+				} else if (contains == 1 || contains == 2) {
+					expectedWeight += weight;
+					missingWeight += weight;
+					foundWeight += weight;
+					remainingWeight -= weight;
+					missingWeight -= weight;
+				} else {
+					expectedWeight += weight;
+					missingWeight += weight;
+				}
+			}
+
+			int top = depth + 1;
+			found[top] = foundWeight;
+			expected[top] = expectedWeight;
+			missing[top] = missingWeight;
+			remaining[top] = remainingWeight;
+			nodes[top] = child;
+			nextChild[top] = 0;
+			results[top] = null;
+
+			if (ids[next] == child) {
+				double score = metric.getScore(sumWeightsSample, foundWeight, expectedWeight, missingWeight,
+						remainingWeight);
+				if (child == expectedId || canReach(collector, metric, score)) {
+					collector.add(workspace.getResult(top, sample));
+				}
+				next++;
+			}
+
+			// walk down only if a candidate is left in the subtree and can reach the
+			// top hits
+			if (next == ids.length || ids[next] > end) {
+				continue;
+			}
+			if (expectedId > child && expectedId <= end) {
+				depth = top;
+				continue;
+			}
+			double bound = bounds.getBound(metric, child, sumWeightsSample, foundWeight, expectedWeight,
+					missingWeight, foundOccurrences);
+			if (canReach(collector, metric, bound)) {
+				depth = top;
+			}
+		}
+
+		workspace.finish();
+		return collector.finish();
+	}
+
+	/**
+	 * @return The position of the first id that is not smaller than the given id
+	 */
+	private static int getNext(int[] ids, int id) {
+		int next = Arrays.binarySearch(ids, id);
+		return next < 0 ? -next - 1 : next;
+	}
+
+	/**
+	 * @return false if a result with this score ranks below the current top
+	 *         hits (a score of the same weights differs by a rounding error at
+	 *         most)
+	 */
+	private static boolean canReach(TopHitCollector collector, SearchMetric metric, double score) {
+		RankedResult lowestTopHit = collector.getLowestTopHit();
+		return lowestTopHit == null || score >= metric.getScore(lowestTopHit) - SearchMetric.EPSILON;
+	}
+
+	/**
+	 * The approximated scores of the nodes of a search and the best
+	 * maxTopResults stable scores among them.
+	 */
+	static final class Scores {
+
+		int size = 0;
+		int[] ids = new int[16];
+		double[] scores = new double[16];
+
+		// true if the approximated score differs from the score of the search by
+		// a rounding error only
+		boolean[] stable = new boolean[16];
+
+		// worst on top
+		private final PriorityQueue<Double> topScores = new PriorityQueue<Double>();
+		private int maxTopResults;
+
+		void start(int maxTopResults) {
+			this.maxTopResults = maxTopResults;
+			size = 0;
+			topScores.clear();
+		}
+
+		void add(int id, double score, boolean stable) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				scores = Arrays.copyOf(scores, size * 2);
+				this.stable = Arrays.copyOf(this.stable, size * 2);
+			}
+			ids[size] = id;
+			scores[size] = score;
+			this.stable[size] = stable;
+			size++;
+
+			if (!stable) {
+				return;
+			}
+			if (topScores.size() < maxTopResults) {
+				topScores.add(score);
+			} else if (score > topScores.peek()) {
+				topScores.poll();
+				topScores.add(score);
+			}
+		}
+
+		/**
+		 * @return The lowest score that can reach the top hits, it only grows
+		 *         with the added scores
+		 */
+		double getThreshold() {
+			return topScores.size() < maxTopResults ? Double.NEGATIVE_INFINITY
+					: topScores.peek() - SearchMetric.EPSILON;
+		}
+	}
+
+	/**
+	 * The arrays of one thread: the stack of the walk and the polymorphisms of
+	 * the sample that is searched.
+	 */
+	private class Workspace {
+
+		final double[] found = new double[maxDepth + 1];
+		final double[] expected = new double[maxDepth + 1];
+		final double[] missing = new double[maxDepth + 1];
+		final double[] remaining = new double[maxDepth + 1];
+		final int[] nodes = new int[maxDepth + 1];
+		final int[] nextChild = new int[maxDepth + 1];
+
+		// search results of the path, null until they are needed
+		final SearchResult[] results = new SearchResult[maxDepth + 1];
+
+		// Sample.contains of the entries at the positions of the sample, valid if
+		// checked equals the current search, all other entries are not contained
+		final int[] checked = new int[weights.length];
+		final byte[] contained = new byte[weights.length];
+		int search = 0;
+
+		void start(Sample sample) {
+			if (++search == 0) {
+				Arrays.fill(checked, 0);
+				search = 1;
+			}
+			for (Polymorphism polymorphism : sample.getPolymorphisms()) {
+				for (PositionIndex.Entry entry : positionIndex.getEntries(polymorphism.getPosition())) {
+					if (checked[entry.id] != search) {
+						checked[entry.id] = search;
+						contained[entry.id] = (byte) sample.contains(entry.polymorphism);
+					}
+				}
+			}
+		}
+
+		int contains(int entry) {
+			return checked[entry] == search ? contained[entry] : 0;
+		}
+
+		/**
+		 * @return The search result of the node at this depth of the path, built
+		 *         from the deepest search result of the path
+		 */
+		SearchResult getResult(int depth, TestSample sample) {
+			int built = depth;
+			while (results[built] == null) {
+				built--;
+			}
+			for (int i = built + 1; i <= depth; i++) {
+				results[i] = ExactSearch.search(index.getNode(nodes[i]), results[i - 1], sample);
+			}
+			return results[depth];
+		}
+
+		void finish() {
+			Arrays.fill(results, null);
+		}
+	}
+
+}
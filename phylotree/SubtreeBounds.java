@@ -0,0 +1,260 @@
+package phylotree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import core.Polymorphism;
+import core.Sample;
+import core.TestSample;
+
+/**
+ * Upper bounds of the scores in a subtree, used to skip subtrees that can not
+ * reach the top hits. The bound of a subtree uses the found weight of its root
+ * plus the weight of all sample polymorphisms that are expected somewhere in
+ * the subtree, together with the missing weight of its root, which never
+ * decreases along a path.
+ */
+final class SubtreeBounds {
+
+	private static final PhylotreeCache<SubtreeBounds> instances = new PhylotreeCache<SubtreeBounds>(
+			new PhylotreeCache.Factory<SubtreeBounds>() {
+				@Override
+				public SubtreeBounds create(Phylotree phylotree) {
+					return new SubtreeBounds(phylotree);
+				}
+			});
+
+	private final Phylotree phylotree;
+
+	private final AncestryIndex index;
+
+	// true if no node of the subtree has a back mutation without its polymorphism on the path
+	private final boolean[] balanced;
+
+	// maximal weight of the back mutations below every node on one path
+	private final double[] revertedWeight;
+
+	private final HashMap<Integer, ArrayList<Occurrences>> occurrencesByPosition = new HashMap<Integer, ArrayList<Occurrences>>();
+
+	private SubtreeBounds(Phylotree phylotree) {
+
+		this.phylotree = phylotree;
+		index = AncestryIndex.getInstance(phylotree);
+
+		int size = index.getSize();
+		balanced = new boolean[size];
+		revertedWeight = new double[size];
+
+		HashMap<Polymorphism, Occurrences> occurrences = new HashMap<Polymorphism, Occurrences>();
+		double[] backMutationWeight = new double[size];
+		collectOccurrences(0, true, new HashMap<String, Integer>(), new HashMap<Polymorphism, Integer>(), occurrences,
+				backMutationWeight);
+
+		// ids are in preorder, children are completed before their parent
+		for (int id = size - 1; id >= 0; id--) {
+			for (int child : index.getChildren(id)) {
+				balanced[id] &= balanced[child];
+				revertedWeight[id] = Math.max(revertedWeight[id], backMutationWeight[child] + revertedWeight[child]);
+			}
+		}
+
+		for (Occurrences occurrence : occurrences.values()) {
+			occurrence.nodes = Arrays.copyOf(occurrence.nodes, occurrence.size);
+			ArrayList<Occurrences> list = occurrencesByPosition.get(occurrence.polymorphism.getPosition());
+			if (list == null) {
+				list = new ArrayList<Occurrences>();
+				occurrencesByPosition.put(occurrence.polymorphism.getPosition(), list);
+			}
+			list.add(occurrence);
+		}
+	}
+
+	/**
+	 * Returns the bounds of the given phylotree. They are built on the first
+	 * call and shared afterwards.
+	 */
+	static SubtreeBounds getInstance(Phylotree phylotree) {
+		return instances.get(phylotree);
+	}
+
+	/**
+	 * Collects the nodes of every expected polymorphism and checks the back
+	 * mutations of all paths.
+	 *
+	 * @param pathCounts  Polymorphisms on the path (by name) that can be
+	 *                    reverted by a back mutation
+	 * @param recurrences Polymorphisms on the path (by equality)
+	 */
+	private void collectOccurrences(int id, boolean balancedPath, HashMap<String, Integer> pathCounts,
+			HashMap<Polymorphism, Integer> recurrences, HashMap<Polymorphism, Occurrences> occurrences,
+			double[] backMutationWeight) {
+
+		ArrayList<Polymorphism> polymorphisms = index.getNode(id).getExpectedPolys();
+		ArrayList<String> added = new ArrayList<String>();
+		ArrayList<String> reverted = new ArrayList<String>();
+
+		for (Polymorphism polymorphism : polymorphisms) {
+
+			if (polymorphism.isBackMutation()) {
+				Polymorphism reference = new Polymorphism(polymorphism);
+				reference.setBackMutation(false);
+				backMutationWeight[id] += phylotree.getMutationRate(reference);
+				String name = reference.toString();
+				Integer count = pathCounts.get(name);
+				if (count == null || count == 0) {
+					balancedPath = false;
+				} else {
+					pathCounts.put(name, count - 1);
+					reverted.add(name);
+				}
+				continue;
+			}
+
+			String name = polymorphism.toString();
+			Integer count = pathCounts.get(name);
+			pathCounts.put(name, count == null ? 1 : count + 1);
+			added.add(name);
+
+			Integer recurrence = recurrences.get(polymorphism);
+			recurrence = recurrence == null ? 1 : recurrence + 1;
+			recurrences.put(polymorphism, recurrence);
+
+			Occurrences occurrence = occurrences.get(polymorphism);
+			if (occurrence == null) {
+				occurrence = new Occurrences(polymorphism);
+				occurrences.put(polymorphism, occurrence);
+			}
+			occurrence.add(id, phylotree.getMutationRate(polymorphism), recurrence);
+		}
+
+		balanced[id] = balancedPath;
+
+		for (int child : index.getChildren(id)) {
+			collectOccurrences(child, balancedPath, pathCounts, recurrences, occurrences, backMutationWeight);
+		}
+
+		for (String name : reverted) {
+			pathCounts.put(name, pathCounts.get(name) + 1);
+		}
+		for (String name : added) {
+			pathCounts.put(name, pathCounts.get(name) - 1);
+		}
+		for (Polymorphism polymorphism : polymorphisms) {
+			if (!polymorphism.isBackMutation()) {
+				recurrences.put(polymorphism, recurrences.get(polymorphism) - 1);
+			}
+		}
+	}
+
+	/**
+	 * @return The expected polymorphisms that are found in the sample
+	 */
+	Occurrences[] getFoundOccurrences(TestSample sample) {
+
+		Sample polymorphisms = sample.getSample();
+		HashSet<Occurrences> checked = new HashSet<Occurrences>();
+		ArrayList<Occurrences> found = new ArrayList<Occurrences>();
+
+		for (Polymorphism polymorphism : polymorphisms.getPolymorphisms()) {
+			ArrayList<Occurrences> candidates = occurrencesByPosition.get(polymorphism.getPosition());
+			if (candidates == null) {
+				continue;
+			}
+			for (Occurrences occurrence : candidates) {
+				if (checked.add(occurrence) && polymorphisms.getSampleRanges().contains(occurrence.polymorphism)
+						&& polymorphisms.contains(occurrence.polymorphism) > 0) {
+					found.add(occurrence);
+				}
+			}
+		}
+
+		return found.toArray(new Occurrences[found.size()]);
+	}
+
+	/**
+	 * @param found The found occurrences of the sample (see
+	 *              {@link #getFoundOccurrences(TestSample)})
+	 * @return Upper bound of the scores of all nodes below the node, given the
+	 *         weights of the node
+	 */
+	double getBound(SearchMetric metric, int id, double sumWeightsSample, double foundWeight, double expectedWeight,
+			double missingWeight, Occurrences[] found) {
+
+		// expected but not found weight, only back mutations can lower it
+		double unfoundWeight = expectedWeight - foundWeight - revertedWeight[id];
+
+		return metric.getBound(sumWeightsSample, foundWeight + getFoundWeightBelow(found, id), missingWeight,
+				unfoundWeight, balanced[id]);
+	}
+
+	/**
+	 * @return Upper bound of the weight that is found below the node on one path
+	 */
+	private double getFoundWeightBelow(Occurrences[] found, int id) {
+		double weight = 0;
+		for (Occurrences occurrence : found) {
+			int count = occurrence.count(id + 1, index.getSubtreeEnd(id));
+			if (count > 0) {
+				weight += occurrence.weight * Math.min(count, occurrence.recurrence);
+			}
+		}
+		return weight;
+	}
+
+	/**
+	 * The nodes (in preorder) that expect one polymorphism.
+	 */
+	static final class Occurrences {
+
+		final Polymorphism polymorphism;
+
+		int[] nodes = new int[4];
+		int size = 0;
+
+		// maximal weight and maximal amount of occurrences on one path
+		double weight = 0;
+		int recurrence = 0;
+
+		Occurrences(Polymorphism polymorphism) {
+			this.polymorphism = polymorphism;
+		}
+
+		void add(int id, double weight, int recurrence) {
+			if (size == nodes.length) {
+				nodes = Arrays.copyOf(nodes, size * 2);
+			}
+			nodes[size++] = id;
+			this.weight = Math.max(this.weight, weight);
+			this.recurrence = Math.max(this.recurrence, recurrence);
+		}
+
+		/**
+		 * @return The amount of nodes with from <= id <= to
+		 */
+		int count(int from, int to) {
+			int start = Arrays.binarySearch(nodes, from);
+			if (start < 0) {
+				start = -start - 1;
+			} else {
+				while (start > 0 && nodes[start - 1] == from) {
+					start--;
+				}
+			}
+			if (start == nodes.length || nodes[start] > to) {
+				return 0;
+			}
+			int stop = Arrays.binarySearch(nodes, start, nodes.length, to + 1);
+			if (stop < 0) {
+				stop = -stop - 1;
+			} else {
+				while (stop > start && nodes[stop - 1] == to + 1) {
+					stop--;
+				}
+			}
+			return stop - start;
+		}
+	}
+
+}
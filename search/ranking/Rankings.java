@@ -0,0 +1,20 @@
+package search.ranking;
+
+/**
+ * Settings of ranking methods that are needed by searches outside of this
+ * package.
+ */
+public final class Rankings {
+
+	private Rankings() {
+	}
+
+	/**
+	 * @return The amount of results the ranking method keeps (in addition to the
+	 *         expected haplogroup)
+	 */
+	public static int getMaxTopResults(RankingMethod rankingMethod) {
+		return rankingMethod.maxTopResults;
+	}
+
+}
@@ -0,0 +1,190 @@
+package search.ranking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import core.Haplogroup;
+import core.TestSample;
+import search.SearchResult;
+import search.ranking.results.HammingResult;
+import search.ranking.results.JaccardResult;
+import search.ranking.results.Kimura2PResult;
+import search.ranking.results.KylczynskiResult;
+import search.ranking.results.RankedResult;
+
+/**
+ * Streaming version of {@link RankingMethod#setResults}: the search results
+ * are ranked one by one while the tree is searched, and only the best
+ * maxTopResults ranked results (and the ones of the expected haplogroup) are
+ * kept in a bounded heap. Ranked results that are equal by
+ * {@link RankedResult#compareTo} keep the order in which they were added, the
+ * same as the stable sort of the ranking methods, so the results are the same
+ * as the ones of setResults with all search results in the same order.
+ *
+ * Kulczynski, Hamming, Jaccard and Kimura2P rankings are supported, other
+ * ranking methods get all search results at the end.
+ */
+public final class TopHitCollector {
+
+	// worst hit on top
+	private static final Comparator<Hit> WORST_FIRST = new Comparator<Hit>() {
+		@Override
+		public int compare(Hit hit1, Hit hit2) {
+			return hit2.compareTo(hit1);
+		}
+	};
+
+	private final RankingMethod rankingMethod;
+
+	private final TestSample sample;
+
+	private final Haplogroup expectedHaplogroup;
+
+	private final int maxTopResults;
+
+	private final PriorityQueue<Hit> hits;
+
+	// hits of the expected haplogroup that are not part of the top hits
+	private final ArrayList<Hit> expectedHits = new ArrayList<Hit>();
+
+	// search results of ranking methods that are not supported
+	private final ArrayList<SearchResult> searchResults = new ArrayList<SearchResult>();
+
+	private final boolean supported;
+
+	private long added = 0;
+
+	/**
+	 * @param rankingMethod The ranking method, it keeps the results after
+	 *                      {@link #finish()}
+	 * @param sample        The searched sample
+	 */
+	public TopHitCollector(RankingMethod rankingMethod, TestSample sample) {
+
+		this.rankingMethod = rankingMethod;
+		this.sample = sample;
+		this.expectedHaplogroup = sample.getExpectedHaplogroup();
+		this.maxTopResults = Math.max(0, rankingMethod.maxTopResults);
+		this.supported = rankingMethod instanceof KulczynskiRanking || rankingMethod instanceof HammingRanking
+				|| rankingMethod instanceof JaccardRanking || rankingMethod instanceof Kimura2PRanking;
+		this.hits = new PriorityQueue<Hit>(11, WORST_FIRST);
+
+		// setResults adds to the results the ranking method already has
+		if (supported) {
+			for (RankedResult result : rankingMethod.results) {
+				add(result);
+			}
+		}
+	}
+
+	/**
+	 * @return The ranked result of the search result, the same as the one of
+	 *         the ranking method
+	 */
+	private RankedResult rank(SearchResult result) {
+		if (rankingMethod instanceof KulczynskiRanking) {
+			return new KylczynskiResult(result, expectedHaplogroup);
+		}
+		if (rankingMethod instanceof HammingRanking) {
+			return new HammingResult(result, expectedHaplogroup);
+		}
+		if (rankingMethod instanceof JaccardRanking) {
+			return new JaccardResult(result, expectedHaplogroup);
+		}
+		return new Kimura2PResult(result, expectedHaplogroup);
+	}
+
+	/**
+	 * Ranks the search result. Search results have to be added in the order of
+	 * the search.
+	 */
+	public void add(SearchResult result) {
+		if (supported) {
+			add(rank(result));
+		} else {
+			searchResults.add(result);
+		}
+	}
+
+	private void add(RankedResult result) {
+
+		Hit hit = new Hit(result, added++);
+
+		if (hits.size() < maxTopResults) {
+			hits.add(hit);
+			return;
+		}
+
+		if (maxTopResults > 0 && hit.compareTo(hits.peek()) < 0) {
+			hits.add(hit);
+			hit = hits.poll();
+		}
+
+		// results outside of the top hits are cut, except the ones of the expected
+		// haplogroup
+		if (hit.result.getHaplogroup().equals(expectedHaplogroup)) {
+			expectedHits.add(hit);
+		}
+	}
+
+	/**
+	 * @return The worst of the top hits so far, a result has to rank better to
+	 *         become a top hit. Null as long as less than maxTopResults results
+	 *         are ranked.
+	 */
+	public RankedResult getLowestTopHit() {
+		if (!supported || maxTopResults == 0 || hits.size() < maxTopResults) {
+			return null;
+		}
+		return hits.peek().result;
+	}
+
+	/**
+	 * Sets the results of the ranking method.
+	 *
+	 * @return The ranked results, best result first
+	 */
+	public ArrayList<RankedResult> finish() {
+
+		if (!supported) {
+			rankingMethod.setResults(sample, searchResults);
+			return rankingMethod.getResults();
+		}
+
+		ArrayList<Hit> sorted = new ArrayList<Hit>(hits);
+		sorted.addAll(expectedHits);
+		Collections.sort(sorted);
+
+		ArrayList<RankedResult> results = new ArrayList<RankedResult>(sorted.size());
+		for (Hit hit : sorted) {
+			results.add(hit.result);
+		}
+
+		rankingMethod.results = results;
+		return results;
+	}
+
+	private static class Hit implements Comparable<Hit> {
+
+		final RankedResult result;
+
+		final long order;
+
+		Hit(RankedResult result, long order) {
+			this.result = result;
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo(Hit hit) {
+			int compare = result.compareTo(hit.result);
+			if (compare != 0) {
+				return compare;
+			}
+			return order < hit.order ? -1 : (order > hit.order ? 1 : 0);
+		}
+	}
+
+}
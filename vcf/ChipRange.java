@@ -0,0 +1,197 @@
+package vcf;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import core.Polymorphism;
+import core.SampleRanges;
+
+/**
+ * The positions covered by a chip array. One immutable instance is created per
+ * import and shared by all samples of the file. Positions are stored in a
+ * bitset, the "pos;pos;..." string and the {@link SampleRanges} are created
+ * once on demand.
+ */
+public final class ChipRange {
+
+	private final BitSet positions;
+
+	private String range;
+
+	private SampleRanges sampleRanges;
+
+	private ChipRange(BitSet positions) {
+		this.positions = positions;
+	}
+
+	public boolean contains(int pos) {
+		return pos >= 0 && positions.get(pos);
+	}
+
+	/**
+	 * @return The amount of covered positions
+	 */
+	public int size() {
+		return positions.cardinality();
+	}
+
+	/**
+	 * @return The positions in ascending order as "pos;pos;...", the format
+	 *         accepted by {@link SampleRanges#SampleRanges(String, boolean)}
+	 */
+	@Override
+	public synchronized String toString() {
+		if (range == null) {
+			StringBuilder builder = new StringBuilder();
+			for (int pos = positions.nextSetBit(0); pos >= 0; pos = positions.nextSetBit(pos + 1)) {
+				builder.append(pos).append(';');
+			}
+			range = builder.toString();
+		}
+		return range;
+	}
+
+	/**
+	 * @return A shared, read only SampleRanges with one range per position.
+	 *         contains(), equals() and hashCode() use the bitset instead of
+	 *         range lists.
+	 */
+	public synchronized SampleRanges getSampleRanges() {
+		if (sampleRanges == null) {
+			sampleRanges = new BitSetSampleRanges(positions, toString());
+		}
+		return sampleRanges;
+	}
+
+	public static class Builder {
+
+		private final BitSet positions = new BitSet(16570);
+
+		public void add(int pos) {
+			positions.set(pos);
+		}
+
+		public ChipRange build() {
+			return new ChipRange((BitSet) positions.clone());
+		}
+	}
+
+	/**
+	 * One range per covered position. The range lists of SampleRanges are only
+	 * built if a report asks for them, all other methods use the bitset.
+	 */
+	static final class BitSetSampleRanges extends SampleRanges {
+
+		private final BitSet positions;
+		private final String range;
+		private final boolean sealed;
+
+		private ArrayList<Integer> starts;
+
+		BitSetSampleRanges(BitSet positions, String range) {
+			this.positions = positions;
+			this.range = range;
+			super.setLength(positions.cardinality());
+			sealed = true;
+		}
+
+		/**
+		 * @return The covered positions in ascending order
+		 */
+		@Override
+		public synchronized ArrayList<Integer> getStarts() {
+			if (starts == null) {
+				starts = new ArrayList<Integer>(positions.cardinality());
+				for (int pos = positions.nextSetBit(0); pos >= 0; pos = positions.nextSetBit(pos + 1)) {
+					starts.add(pos);
+				}
+			}
+			return starts;
+		}
+
+		/**
+		 * @return The same positions as {@link #getStarts()}
+		 */
+		@Override
+		public ArrayList<Integer> getEnds() {
+			return getStarts();
+		}
+
+		@Override
+		public int getSubrangeID(Polymorphism polymorphism) {
+			int pos = polymorphism.getPosition();
+			return contains(polymorphism) ? positions.get(0, pos).cardinality() : -1;
+		}
+
+		@Override
+		public SampleRanges getSubrange(int index) {
+			SampleRanges subrange = new SampleRanges();
+			subrange.addCustomRange(getStarts().get(index), getEnds().get(index));
+			return subrange;
+		}
+
+		@Override
+		public String toString() {
+			return range;
+		}
+
+		@Override
+		public int hashCode() {
+			return positions.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (this == object) {
+				return true;
+			}
+			if (!(object instanceof BitSetSampleRanges)) {
+				return false;
+			}
+			return positions.equals(((BitSetSampleRanges) object).positions);
+		}
+
+		@Override
+		public boolean contains(Polymorphism polymorphism) {
+			int pos = polymorphism.getPosition();
+			return pos >= 0 && positions.get(pos);
+		}
+
+		@Override
+		public void addCompleteRange() {
+			throw new UnsupportedOperationException("Chip ranges are read only");
+		}
+
+		@Override
+		public void addControlRange() {
+			throw new UnsupportedOperationException("Chip ranges are read only");
+		}
+
+		@Override
+		public void addMetaboChipRange() {
+			throw new UnsupportedOperationException("Chip ranges are read only");
+		}
+
+		@Override
+		public void addCustomRange(int start, int end) {
+			if (sealed) {
+				throw new UnsupportedOperationException("Chip ranges are read only");
+			}
+			super.addCustomRange(start, end);
+		}
+
+		@Override
+		public void clear() {
+			throw new UnsupportedOperationException("Chip ranges are read only");
+		}
+
+		@Override
+		public void setLength(int length) {
+			if (sealed) {
+				throw new UnsupportedOperationException("Chip ranges are read only");
+			}
+			super.setLength(length);
+		}
+	}
+
+}
@@ -1,31 +1,163 @@
 package vcf;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.TreeMap;
 
+/**
+ * Variants of one sample. Instead of a Variant object per site, all fields are
+ * kept in primitive arrays. A small open addressing table maps a position to
+ * its index, so lookups are constant time and do not allocate. The index based
+ * getters (e.g. {@link #getTypeAt(int)}) should be preferred in hot loops,
+ * {@link #getVariant(int)} and {@link #getVariants()} create Variant objects on
+ * demand.
+ */
 public class Sample {
 
+	private static final int INITIAL_CAPACITY = 16;
+
 	private String id;
-	private TreeMap<Integer, Variant> variants;
 	private int amountHomoplasmies = 0;
 	private int amountVariants = 0;
 	private int amountHeteroplasmies = 0;
 	boolean chip;
 	private String range;
+	private ChipRange chipRange;
 
 	private float sumCoverage = 0;
 	private float sumHeteroplasmyLevel = 0;
 
+	// one entry per position, in insertion order
+	private int size = 0;
+	private int[] positions;
+	private byte[] types;
+	private char[] refs;
+	private char[] variantBases;
+	private char[] majors;
+	private char[] minors;
+	private double[] levels;
+	private double[] majorLevels;
+	private double[] minorLevels;
+	private int[] coverages;
+	private String[] insertions;
+
+	// indices sorted by position
+	private int[] order;
+
+	// open addressing: index + 1 or 0 if the slot is empty
+	private char[] table;
+
 	public Sample() {
-		variants = new TreeMap<Integer, Variant>();
+		positions = new int[INITIAL_CAPACITY];
+		types = new byte[INITIAL_CAPACITY];
+		refs = new char[INITIAL_CAPACITY];
+		variantBases = new char[INITIAL_CAPACITY];
+		majors = new char[INITIAL_CAPACITY];
+		minors = new char[INITIAL_CAPACITY];
+		levels = new double[INITIAL_CAPACITY];
+		majorLevels = new double[INITIAL_CAPACITY];
+		minorLevels = new double[INITIAL_CAPACITY];
+		coverages = new int[INITIAL_CAPACITY];
+		order = new int[INITIAL_CAPACITY];
+		table = new char[INITIAL_CAPACITY * 2];
 	}
 
+	/**
+	 * @return All variants ordered by position. The Variant objects are created
+	 *         on every call.
+	 */
 	public Collection<Variant> getVariants() {
-		return variants.values();
+		ArrayList<Variant> variants = new ArrayList<Variant>(size);
+		for (int i = 0; i < size; i++) {
+			variants.add(toVariant(order[i]));
+		}
+		return variants;
 	}
 
+	/**
+	 * @return The variant at this position or null. The Variant object is created
+	 *         on every call.
+	 */
 	public Variant getVariant(int pos) {
-		return variants.get(pos);
+		int index = indexOf(pos);
+		if (index == -1) {
+			return null;
+		}
+		return toVariant(index);
+	}
+
+	/**
+	 * @return The index of the variant at this position or -1
+	 */
+	public int indexOf(int pos) {
+		int mask = table.length - 1;
+		int slot = hash(pos) & mask;
+		while (table[slot] != 0) {
+			int index = table[slot] - 1;
+			if (positions[index] == pos) {
+				return index;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The amount of stored positions
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The index of the i-th variant ordered by position
+	 */
+	public int getIndexInOrder(int i) {
+		return order[i];
+	}
+
+	public int getPosAt(int index) {
+		return positions[index];
+	}
+
+	public int getTypeAt(int index) {
+		return types[index];
+	}
+
+	public char getRefAt(int index) {
+		return refs[index];
+	}
+
+	public char getVariantAt(int index) {
+		return variantBases[index];
+	}
+
+	public char getMajorAt(int index) {
+		return majors[index];
+	}
+
+	public char getMinorAt(int index) {
+		return minors[index];
+	}
+
+	public double getLevelAt(int index) {
+		return levels[index];
+	}
+
+	public double getMajorLevelAt(int index) {
+		return majorLevels[index];
+	}
+
+	public double getMinorLevelAt(int index) {
+		return minorLevels[index];
+	}
+
+	public int getCoverageAt(int index) {
+		return coverages[index];
+	}
+
+	public String getInsertionAt(int index) {
+		return insertions == null ? null : insertions[index];
 	}
 
 	public String getId() {
@@ -38,7 +170,29 @@ public class Sample {
 
 	public void addVariant(Variant var) {
 
-		variants.put(var.getPos(), var);
+		int index = indexOf(var.getPos());
+
+		// a position is stored once, a later variant replaces the previous one
+		if (index == -1) {
+			index = append(var.getPos());
+		}
+
+		types[index] = (byte) var.getType();
+		refs[index] = var.getRef();
+		variantBases[index] = var.getVariant();
+		majors[index] = var.getMajor();
+		minors[index] = var.getMinor();
+		levels[index] = var.getLevel();
+		majorLevels[index] = var.getMajorLevel();
+		minorLevels[index] = var.getMinorLevel();
+		coverages[index] = var.getCoverage();
+
+		if (var.getInsertion() != null || insertions != null) {
+			if (insertions == null) {
+				insertions = new String[positions.length];
+			}
+			insertions[index] = var.getInsertion();
+		}
 
 		this.updateCount(var.getType());
 
@@ -49,6 +203,100 @@ public class Sample {
 		this.sumCoverage(var.getCoverage());
 	}
 
+	/**
+	 * Updates the coverage of an already added variant. The coverage sum of the
+	 * sample is not changed.
+	 */
+	public void setCoverage(int pos, int coverage) {
+		int index = indexOf(pos);
+		if (index != -1) {
+			coverages[index] = coverage;
+		}
+	}
+
+	private int append(int pos) {
+
+		if (size == positions.length) {
+			grow();
+		}
+
+		int index = size;
+		positions[index] = pos;
+
+		// variants arrive mostly sorted, insertion sort is cheap
+		int i = size;
+		while (i > 0 && positions[order[i - 1]] > pos) {
+			order[i] = order[i - 1];
+			i--;
+		}
+		order[i] = index;
+
+		size++;
+
+		if (size * 2 > table.length) {
+			rehash(table.length * 2);
+		} else {
+			insert(index);
+		}
+
+		return index;
+	}
+
+	private void grow() {
+		int capacity = positions.length * 2;
+		positions = Arrays.copyOf(positions, capacity);
+		types = Arrays.copyOf(types, capacity);
+		refs = Arrays.copyOf(refs, capacity);
+		variantBases = Arrays.copyOf(variantBases, capacity);
+		majors = Arrays.copyOf(majors, capacity);
+		minors = Arrays.copyOf(minors, capacity);
+		levels = Arrays.copyOf(levels, capacity);
+		majorLevels = Arrays.copyOf(majorLevels, capacity);
+		minorLevels = Arrays.copyOf(minorLevels, capacity);
+		coverages = Arrays.copyOf(coverages, capacity);
+		order = Arrays.copyOf(order, capacity);
+		if (insertions != null) {
+			insertions = Arrays.copyOf(insertions, capacity);
+		}
+	}
+
+	private void rehash(int capacity) {
+		table = new char[capacity];
+		for (int index = 0; index < size; index++) {
+			insert(index);
+		}
+	}
+
+	private void insert(int index) {
+		int mask = table.length - 1;
+		int slot = hash(positions[index]) & mask;
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = (char) (index + 1);
+	}
+
+	private static int hash(int pos) {
+		int h = pos * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private Variant toVariant(int index) {
+		Variant variant = new Variant();
+		variant.setPos(positions[index]);
+		variant.setType(types[index]);
+		variant.setRef(refs[index]);
+		variant.setVariantBase(variantBases[index]);
+		variant.setMajor(majors[index]);
+		variant.setMinor(minors[index]);
+		variant.setLevel(levels[index]);
+		variant.setMajorLevel(majorLevels[index]);
+		variant.setMinorLevel(minorLevels[index]);
+		variant.setCoverage(coverages[index]);
+		variant.setInsertion(getInsertionAt(index));
+		return variant;
+	}
+
 	private void updateCount(int type) {
 
 		amountVariants += 1;
@@ -119,10 +367,29 @@ public class Sample {
 	}
 
 	public String getRange() {
+		if (chipRange != null) {
+			return chipRange.toString();
+		}
 		return range;
 	}
 
 	public void setRange(String range) {
 		this.range = range;
+		this.chipRange = null;
+	}
+
+	/**
+	 * @return The covered positions of a chip array or null
+	 */
+	public ChipRange getChipRange() {
+		return chipRange;
+	}
+
+	/**
+	 * Sets the shared range of a chip array import.
+	 */
+	public void setRange(ChipRange chipRange) {
+		this.chipRange = chipRange;
+		this.range = null;
 	}
 }